@@ -0,0 +1,73 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * CacheClient配置，对应application.yaml中的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheClientProperties {
+
+    /**
+     * 写入缓存时的编码：json(Jackson) / smile(Jackson二进制格式，更小更快)
+     */
+    private String codec = "json";
+
+    /**
+     * 进程内一级缓存
+     */
+    private L1 l1 = new L1();
+
+    /**
+     * 店铺id布隆过滤器
+     */
+    private Bloom bloom = new Bloom();
+
+    @Data
+    public static class L1 {
+        /**
+         * 是否开启一级缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 最多缓存多少个key，max-weight-bytes大于0时按大小限制，这一项不生效
+         */
+        private long maxSize = 10000;
+        /**
+         * 按缓存值的大小(序列化后的字节数)限制总量，0表示按个数限制
+         */
+        private long maxWeightBytes = 0;
+        /**
+         * 写入多久后过期(毫秒)，错过失效通知时最多读到这么久的旧数据
+         */
+        private long expireAfterWriteMs = 60000;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启，开启后启动时从tb_shop分页加载所有店铺id
+         */
+        private boolean enabled = false;
+        /**
+         * 预计的店铺数量，超过后误判率会升高，需要调大后重启重建
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 误判率，误判的id会和原来一样查Redis、查数据库、缓存空值
+         */
+        private double falsePositiveRate = 0.01;
+        /**
+         * 启动时每页加载多少个id
+         */
+        private int pageSize = 1000;
+        /**
+         * 多久从Redis合并一次位图(毫秒)，补上错过的新增通知
+         */
+        private long refreshIntervalMs = 300000;
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 延迟队列配置，对应application.yaml中的 hmdp.delay-queue
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.delay-queue")
+public class DelayQueueProperties {
+
+    /**
+     * 每个主题的分桶数，元素按hash分散到各个桶中
+     */
+    private int buckets = 16;
+
+    /**
+     * 拉取间隔(毫秒)
+     */
+    private long pollIntervalMs = 1000;
+
+    /**
+     * 每个桶每次最多取出多少个元素
+     */
+    private int batchSize = 100;
+
+    /**
+     * 处理失败的元素多久之后重新到期(毫秒)
+     */
+    private long retryDelayMs = 5000;
+}
@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 全局id生成配置，对应application.yaml中的 hmdp.id-worker
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id-worker")
+public class IdWorkerProperties {
+
+    /**
+     * redis：每个id一次INCR（原有模式）；segment：每次INCRBY预留一段序列号，在本地发放；
+     * snowflake：时间戳+worker id+序列号，发号完全不访问Redis
+     * snowflake的id第62位固定为1，和redis/segment模式的id不会重复，可以直接切换
+     */
+    private String mode = "redis";
+
+    /**
+     * segment模式下每次预留的序列号个数
+     */
+    private long segmentStep = 1000;
+
+    /**
+     * 当前号段用掉这个比例后，异步预取下一个号段
+     */
+    private double prefetchThreshold = 0.8;
+
+    /**
+     * snowflake模式下worker id租约时长(毫秒)，每 1/3 时长续期一次
+     */
+    private long workerLeaseTtlMs = 30000;
+
+    /**
+     * snowflake模式下时钟回拨不超过这个时间(毫秒)就等待，超过则借用保留的序列号
+     */
+    private long maxBackwardWaitMs = 5;
+}
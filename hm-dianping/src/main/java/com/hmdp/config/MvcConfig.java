@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -14,6 +15,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         WebMvcConfigurer.super.addInterceptors(registry);
@@ -25,8 +28,13 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/actuator/health"
                 ).order(1);
+        // 死信队列等运维接口只给管理员
+        registry.addInterceptor(new AdminInterceptor(seckillProperties.getOrder().getRecovery().getAdminUserIds()))
+                .addPathPatterns("/voucher-order/admin/**")
+                .order(2);
         //拦截器的执行顺序可以由order来指定，如果未设置拦截路径，则默认是拦截所有路径
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
     }
@@ -1,8 +1,10 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -10,10 +12,12 @@ import org.springframework.context.annotation.Configuration;
 public class RedissonConfig {
 
     @Bean
-    public RedissonClient redissonClient(){
-        // 配置
+    public RedissonClient redissonClient(RedisProperties redisProperties){
+        // 配置，和StringRedisTemplate连同一个Redis(spring.redis)，压测时可以换成内嵌Redis的端口
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+        config.useSingleServer()
+                .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
         //创建RedissonClient对象
         return Redisson.create(config);
     }
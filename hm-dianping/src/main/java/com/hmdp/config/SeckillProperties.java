@@ -0,0 +1,374 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 秒杀相关配置，对应application.yaml中的 hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 订单消息队列(stream.orders)的消费配置
+     */
+    private Order order = new Order();
+
+    /**
+     * 热点券的本地库存租约
+     */
+    private Lease lease = new Lease();
+
+    /**
+     * 本地售罄/未开始登记表
+     */
+    private Registry registry = new Registry();
+
+    /**
+     * Redis Cluster下的分片库存
+     */
+    private Shard shard = new Shard();
+
+    /**
+     * 一人一单的去重方式
+     */
+    private Dedupe dedupe = new Dedupe();
+
+    /**
+     * 同一张券的并发请求合并成一次lua调用
+     */
+    private Coalesce coalesce = new Coalesce();
+
+    /**
+     * 秒杀接口的准入控制
+     */
+    private Admission admission = new Admission();
+
+    /**
+     * 订单处理状态查询
+     */
+    private Status status = new Status();
+
+    /**
+     * Redis和数据库库存对账
+     */
+    private Reconcile reconcile = new Reconcile();
+
+    /**
+     * 秒杀结束后的归档和key清理
+     */
+    private Archive archive = new Archive();
+
+    @Data
+    public static class Order {
+        /**
+         * 订单队列：stream(Redis Stream，默认)、ring(进程内环形队列，只适合单节点)
+         */
+        private String queue = "stream";
+        /**
+         * 进程内环形队列的容量，必须是2的幂
+         */
+        private int ringBufferSize = 65536;
+        /**
+         * 每次XREADGROUP最多读取的消息条数，1表示逐条处理（原有模式）
+         */
+        private int batchSize = 1;
+        /**
+         * 批量模式下读到第一条消息后，最多再等待多久凑满一批(毫秒)
+         */
+        private long maxLingerMs = 20;
+        /**
+         * 订单stream的分区数，seckill.lua按userId写入 stream.orders.{n}。
+         * 分片库存模式下一人一单的key也按它分区，还有没结束的秒杀券时不能修改
+         */
+        private int partitions = 1;
+        /**
+         * 每个实例的消费线程数
+         */
+        private int workers = 1;
+        /**
+         * 消费者组名称
+         */
+        private String group = "g1";
+        /**
+         * 实例id，为空时使用 主机名:端口，消费者名称为 实例id-线程序号
+         */
+        private String instanceId;
+        /**
+         * 实例心跳间隔(毫秒)，每次心跳都会重新计算分区
+         */
+        private long heartbeatIntervalMs = 3000;
+        /**
+         * 超过多久没有心跳就认为实例已下线(毫秒)
+         */
+        private long instanceTtlMs = 10000;
+        /**
+         * 超时未支付自动取消配置
+         */
+        private PayTimeout payTimeout = new PayTimeout();
+        /**
+         * pending-list恢复配置
+         */
+        private Recovery recovery = new Recovery();
+        /**
+         * stream裁剪和监控配置
+         */
+        private Retention retention = new Retention();
+
+        @Data
+        public static class PayTimeout {
+            /**
+             * 是否自动取消超时未支付的订单，接入支付之前不要开启，否则所有订单都会被取消
+             */
+            private boolean enabled = false;
+            /**
+             * 订单多久不支付自动取消(毫秒)
+             */
+            private long timeoutMs = 900000;
+        }
+
+        @Data
+        public static class Recovery {
+            /**
+             * 多久扫描一次pending-list(毫秒)
+             */
+            private long claimIntervalMs = 5000;
+            /**
+             * 每个分区每次最多检查多少条pending消息
+             */
+            private long claimBatchSize = 100;
+            /**
+             * 第一次重试前消息至少空闲多久(毫秒)，之后每失败一次翻倍
+             */
+            private long retryBackoffMs = 10000;
+            /**
+             * 退避时间上限(毫秒)
+             */
+            private long maxRetryBackoffMs = 300000;
+            /**
+             * 最多投递多少次，超过后转入死信队列 stream.orders.dlq
+             */
+            private long maxDeliveries = 5;
+            /**
+             * 能查看、回放死信队列的用户id，为空时任何人都不能访问 /voucher-order/admin/**
+             */
+            private Set<Long> adminUserIds = new HashSet<>();
+        }
+
+        @Data
+        public static class Retention {
+            /**
+             * 多久裁剪一次stream、采集一次指标(毫秒)
+             */
+            private long intervalMs = 10000;
+            /**
+             * stream长度上限，0表示不限制。超过时按长度裁剪，可能删掉还没处理的消息，只用于保护Redis内存
+             */
+            private long maxLen = 0;
+        }
+    }
+
+    @Data
+    public static class Lease {
+        /**
+         * 是否开启租约模式
+         */
+        private boolean enabled = false;
+        /**
+         * 走租约模式的热点券id
+         */
+        private Set<Long> voucherIds = new HashSet<>();
+        /**
+         * 每次从Redis租多少库存
+         */
+        private int size = 100;
+        /**
+         * 租约有效期(毫秒)，到期没卖完的库存还给Redis
+         */
+        private long ttlMs = 10000;
+        /**
+         * Redis中也没有库存时，多久之后再去租(毫秒)
+         */
+        private long soldOutRecheckMs = 1000;
+    }
+
+    @Data
+    public static class Registry {
+        /**
+         * 售罄标记的有效期(毫秒)，过期后再执行一次lua脚本确认
+         */
+        private long soldOutTtlMs = 5000;
+        /**
+         * 最多记录多少个不存在的券id
+         */
+        private long missingMaxSize = 10000;
+        /**
+         * 不存在的券id记多久(毫秒)，之后再查一次
+         */
+        private long missingTtlMs = 5000;
+    }
+
+    @Data
+    public static class Shard {
+        /**
+         * 是否开启分片库存，开启后新建的秒杀券库存拆到 seckill:stock:{id:s} 中
+         */
+        private boolean enabled = false;
+        /**
+         * 每张券的库存分片数
+         */
+        private int stockShards = 8;
+    }
+
+    @Data
+    public static class Dedupe {
+        /**
+         * set(默认)、bitmap(要求userId为连续的数字)、bloom(有误判)
+         */
+        private String mode = "set";
+        /**
+         * 布隆过滤器第一层的容量，写满后追加一层，容量翻倍
+         */
+        private long bloomCapacity = 100000;
+        /**
+         * 布隆过滤器的总误判率
+         */
+        private double bloomErrorRate = 0.001;
+    }
+
+    @Data
+    public static class Coalesce {
+        /**
+         * 是否开启请求合并，只作用于普通模式(非租约、非分片库存)的券
+         */
+        private boolean enabled = false;
+        /**
+         * 收集请求的窗口(微秒)，第一个请求最多多等这么久
+         */
+        private long windowMicros = 500;
+        /**
+         * 每批最多合并多少个请求，凑满立即执行
+         */
+        private int maxBatch = 64;
+        /**
+         * 等待批次结果的最长时间(毫秒)，超时按失败返回
+         */
+        private long waitTimeoutMs = 3000;
+    }
+
+    @Data
+    public static class Admission {
+        /**
+         * 是否开启准入控制
+         */
+        private boolean enabled = false;
+        /**
+         * 每张券的初始并发上限
+         */
+        private int initialLimit = 50;
+        private int minLimit = 5;
+        private int maxLimit = 500;
+        /**
+         * 秒杀调用的目标耗时(毫秒)，超过就降低并发上限
+         */
+        private long targetLatencyMs = 20;
+        /**
+         * 超过目标耗时时并发上限乘以这个比例
+         */
+        private double backoffRatio = 0.9;
+        /**
+         * 并发上限中预留给持有排队令牌用户的比例
+         */
+        private double reservedRatio = 0.2;
+        /**
+         * 建议的重试间隔(毫秒)，排队令牌在这之后才能使用
+         */
+        private long retryAfterMs = 500;
+        /**
+         * 排队令牌有效期(毫秒)
+         */
+        private long tokenTtlMs = 10000;
+        /**
+         * 排队令牌的签名密钥，多实例部署时需要一致
+         */
+        private String tokenSecret;
+        /**
+         * 最多保留多少张券的并发上限
+         */
+        private long limiterMaxSize = 10000;
+        /**
+         * 一张券多久没有请求就丢掉它的并发上限(毫秒)，下次从initial-limit重新开始
+         */
+        private long limiterIdleMs = 600000;
+    }
+
+    @Data
+    public static class Status {
+        /**
+         * 订单状态在Redis中保留多久(毫秒)
+         */
+        private long ttlMs = 1800000;
+        /**
+         * 长轮询最多挂起多久(毫秒)
+         */
+        private long maxPollTimeoutMs = 30000;
+    }
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 是否开启定时对账
+         */
+        private boolean enabled = false;
+        /**
+         * 对账间隔(毫秒)，每次检查一页
+         */
+        private long intervalMs = 60000;
+        /**
+         * 每次检查多少张券
+         */
+        private int pageSize = 100;
+        /**
+         * 是否自动修复已经结束的券
+         */
+        private boolean autoRepair = false;
+        /**
+         * 秒杀结束多久之后才允许自动修复(毫秒)，等队列里的订单都落库
+         */
+        private long repairGraceMs = 600000;
+    }
+
+    @Data
+    public static class Archive {
+        /**
+         * 是否在秒杀结束后归档并清理Redis中的key，快照写在触发归档的那个实例本地，默认关闭
+         */
+        private boolean enabled = false;
+        /**
+         * 秒杀结束多久之后清理(毫秒)，要大于支付超时时间
+         */
+        private long delayMs = 3600000;
+        /**
+         * 清理时给key设置的过期时间(毫秒)，0表示直接UNLINK
+         */
+        private long retainMs = 0;
+        /**
+         * 已购用户快照的目录
+         */
+        private String dir = "archive/seckill";
+        /**
+         * SSCAN每批的条数，bitmap模式下是GETRANGE每块的字节数
+         */
+        private int scanCount = 1000;
+        /**
+         * 启动时把已经结束、还没清理的券排进延迟队列，第一次上线时会清理所有已结束的券，默认关闭
+         */
+        private boolean backfillOnStartup = false;
+    }
+}
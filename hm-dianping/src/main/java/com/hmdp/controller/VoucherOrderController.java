@@ -4,12 +4,17 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderStreamRecovery;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * <p>
@@ -26,8 +31,76 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private OrderStreamRecovery orderStreamRecovery;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    /**
+     * 秒杀下单
+     * @param voucherId 优惠券id
+     * @param token 上次排队时拿到的令牌，持有有效令牌的请求优先进入
+     * @return 订单id，超过并发上限时返回排队令牌和建议的重试时间
+     */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "X-Seckill-Token", required = false) String token,
+                                 HttpServletResponse response) {
+        if (!seckillAdmission.isEnabled()) {
+            return voucherOrderService.seckillVoucher(voucherId);
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 1.准入控制，超过这张券的并发上限就排队
+        SeckillAdmission.Permit permit = seckillAdmission.tryAcquire(voucherId, userId, token);
+        if (permit == null) {
+            long retryAfterMs = seckillAdmission.retryAfterMs();
+            response.setHeader("Retry-After", String.valueOf((retryAfterMs + 999) / 1000));
+            Map<String, Object> waiting = new HashMap<>();
+            waiting.put("token", seckillAdmission.issueToken(voucherId, userId));
+            waiting.put("retryAfterMs", retryAfterMs);
+            return Result.fail("排队中，请稍后重试", waiting);
+        }
+        // 2.下单，按耗时调整并发上限
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            seckillAdmission.release(permit);
+        }
+    }
+
+    /**
+     * 长轮询查询秒杀订单的处理状态，订单落库或失败后立即返回，超时返回QUEUED
+     * @param orderId 秒杀接口返回的订单id
+     * @param timeout 最多等待的毫秒数
+     * @return QUEUED/CREATED/FAILED
+     */
+    @GetMapping("status/{orderId}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("orderId") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "10000") Long timeout) {
+        return orderStatusTracker.poll(orderId, UserHolder.getUser().getId(), timeout);
+    }
+
+    /**
+     * 查看订单死信队列，只有 admin-user-ids 中的用户能访问
+     * @param count 查看的条数
+     * @return 死信消息列表
+     */
+    @GetMapping("admin/dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "10") Integer count) {
+        return Result.ok(orderStreamRecovery.listDeadLetters(count));
+    }
+
+    /**
+     * 把死信队列中的消息放回原分区重新消费，只有 admin-user-ids 中的用户能访问
+     * @param count 回放的条数
+     * @return 实际回放的条数
+     */
+    @PostMapping("admin/dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return Result.ok(orderStreamRecovery.replayDeadLetters(count));
     }
 }
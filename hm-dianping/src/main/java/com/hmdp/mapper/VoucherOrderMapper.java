@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * INSERT IGNORE，用户已经买过这张券(唯一索引冲突)时不插入
+     *
+     * @return 实际插入的行数，0表示重复下单
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行INSERT IGNORE，一条SQL写入一批订单，重复下单的行被忽略
+     *
+     * @return 实际插入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -19,6 +19,8 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
+    Result saveShop(Shop shop);
+
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    void handleVoucherOrder(VoucherOrder voucherOrder);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    boolean cancelUnpaidOrder(Long orderId);
 }
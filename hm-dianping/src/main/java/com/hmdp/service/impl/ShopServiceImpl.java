@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.CreditCodeUtil;
 import cn.hutool.core.util.StrUtil;
@@ -13,6 +14,7 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import jdk.nashorn.internal.ir.CallNode;
 import org.springframework.data.geo.Distance;
@@ -50,6 +52,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Resource
     private CacheClient cacheClient;
+
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
     @Override
     public Result queryById(Long id) {
         //todo 工具类演示缓存穿透
@@ -63,10 +68,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //Shop shop = queryWithPassThrough(id);
 
         //todo 互斥锁解决缓存击穿
-       // Shop shop = queryWithMutex(id);
+        //未命中时查数据库并写回，没有预热(saveShop2Redis)的店铺和更新后被删掉缓存的店铺也能查到
+        Shop shop = queryWithMutex(id);
 
         //todo 工具类演示缓存击穿
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //逻辑过期要求店铺提前预热，Redis中没有时直接返回null
+        //Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //todo 逻辑过期
        // Shop shop = queryWithLogicalExpire(id);
@@ -135,58 +142,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
 
     public Shop queryWithMutex(Long id){//缓存击穿 包装了原来的queryById
-        String key = CACHE_SHOP_KEY + id;
-        //1. 先从Redis中查商铺缓存，这里的常量值是固定的前缀 + 店铺id
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3. 存在，直接返回
-            // 如果不为空（查询到了），则转为Shop类型直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //判断命中的是否是空值
-        // 如果查询到的是空字符串，则说明是我们缓存的空数据（缓存穿透相关）
-        if(shopJson != null){
-            return null;
-        }
-        //todo 4.实现缓存重建
-        //todo 4.1 获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-
-            //todo 4.2 判断否获取成功
-            if(!isLock){
-                //todo 4.3 失败，则休眠重试
-                Thread.sleep(50);
-                //重试
-                queryWithMutex(id);
-
-            }
-            //4.4 获取互斥锁成功，根据id查询数据库
-            shop = getById(id);
-            //5.不存在，返回错误，查不到返回一个错误信息或者返回空都可以，根据自己的需求来
-            if (shop == null){
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //6. 查到了则转为json字符串
-            String jsonStr = JSONUtil.toJsonStr(shop);
-            //7. 并存入redis
-            stringRedisTemplate.opsForValue().set(key, jsonStr, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-            //todo 8.释放互斥锁
-            //try/catch/finally包裹到这里，然后把释放锁的操作放到finally里
-            //释放互斥锁
-        }finally {
-            unlock(lockKey);
-        }
-        //9. 最终把查询到的商户信息返回给前端
-        return shop;
+        //原来拿不到锁就 Thread.sleep(50) 后递归重试，热点key失效时每个实例会有几百个线程在睡眠轮询；
+        //现在交给CacheClient：本实例内同一个key只有一个线程竞争互斥锁，其它线程等它的结果
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 
@@ -248,13 +206,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //1.查询店铺数据
         Shop shop = getById(id);
 
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
+        //3.写入redis，通过CacheClient写，其它实例的一级缓存会收到失效通知
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
+    }
 
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.写入布隆过滤器，否则新店铺会被当成不存在的id拦下
+        shopBloomFilter.add(shop.getId());
+        //3.返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -265,8 +228,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //2. 删除缓存，同时通知所有实例清掉一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
         return Result.ok();
     }
 
@@ -315,11 +278,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 5.根据id批量查询Shop，一次MGET，未命中的一次查数据库，结果和ids的顺序一致
+        List<Shop> cached = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds,
+                Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            if (shop == null) {
+                // GEO中还有，但店铺已经不存在了
+                continue;
+            }
+            // 缓存中的对象可能被其它请求共享，复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         // 6.返回
         return Result.ok(shops);
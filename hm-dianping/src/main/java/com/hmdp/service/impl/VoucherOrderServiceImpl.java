@@ -1,32 +1,40 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderTimeoutCanceller;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillCoalescer;
+import com.hmdp.utils.SeckillDedupe;
+import com.hmdp.utils.SeckillLocalRegistry;
+import com.hmdp.utils.SeckillStockLeaser;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.StreamPartitionManager;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -45,107 +53,80 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
-    @Resource
     private RedisIdWorker redisIdWorker; //全局唯一id
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+    @Resource
+    private SeckillStockLeaser stockLeaser;
+    @Resource
+    private SeckillLocalRegistry localRegistry;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillDedupe seckillDedupe;
+    @Resource
+    private SeckillCoalescer coalescer;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private OrderTimeoutCanceller orderTimeoutCanceller;
+    @Resource
+    private OrderQueue orderQueue;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_LEASED_SCRIPT;
 
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        // 一人一单的去重逻辑(seckill_dedupe.lua)拼接在脚本前面
+        SECKILL_SCRIPT = SeckillDedupe.script("mapper/seckill.lua");
+        SECKILL_LEASED_SCRIPT = SeckillDedupe.script("mapper/seckill_leased.lua");
     }
 
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
     @PostConstruct //表示被注解的方法将在类实例化后立即执行，并且在依赖注入完成后才会执行。
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
-
-    String queueName = "stream.orders";
-
-    private class VoucherOrderHandler implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 尝试监听队列，使用阻塞模式，最大等待时长为2000ms
-                    //XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            //ReadOffset.lastConsumed()底层就是 '>'
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    // 2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        //2.1 如果获取失败，说明你没有消息，继续下一次循环。再读一次
-                        continue;
-                    }
-
-                    //3. 解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    //消息获取成功之后，我们需要将其转为对象
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    //4. 如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //5. 确认消息 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+        // 消费线程由订单队列启动，Redis Stream或者进程内环形队列
+        orderQueue.start(new OrderQueue.Handler() {
+            @Override
+            public void handle(VoucherOrder voucherOrder) {
+                handleVoucherOrder(voucherOrder);
+            }
 
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();//处理pending-list
-                }
+            @Override
+            public void handleBatch(List<VoucherOrder> voucherOrders) {
+                // 一个事务内：多行insert + 每张券一条扣库存的update
+                proxy.createVoucherOrderBatch(voucherOrders);
+                // 写订单状态，被INSERT IGNORE忽略的订单按库里是否存在判断
+                markBatchStatus(voucherOrders);
             }
-        }
+        });
     }
 
-    private void handlePendingList() {
-        while (true) {
-            try {
-                // 1.获取pending-list中的订单信息 尝试监听队列，使用阻塞模式，最大等待时长为2000ms
-                //XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        //ReadOffset.lastConsumed()底层就是 '>'
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-                //2. 判断pending-list中是否有未处理消息
-                if (list == null || list.isEmpty()) {
-                    // 如果为null，说明没有异常消息，结束循环
-                    break;
-                }
-                //3. 解析消息中的订单消息
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> values = record.getValue();
-                //消息获取成功之后，我们需要将其转为对象
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                //4. 如果获取成功，可以下单
-                handleVoucherOrder(voucherOrder);
-                //5. 确认消息 SACK stream.orders g1 id
-                stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+    @PreDestroy
+    private void destroy() {
+        orderQueue.stop();
+    }
 
-            } catch (Exception e) {
-                log.error("处理pending-list异常", e);
-                //如果怕异常多次出现，可以在这里休眠一会儿
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
+    private void markBatchStatus(List<VoucherOrder> voucherOrders) {
+        try {
+            Set<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            Set<Long> existing = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                Long id = voucherOrder.getId();
+                if (existing.contains(id)) {
+                    orderStatusTracker.markCreated(id, voucherOrder.getUserId());
+                    orderTimeoutCanceller.schedule(id);
+                } else {
+                    orderStatusTracker.markFailed(id, voucherOrder.getUserId());
                 }
             }
+        } catch (Exception e) {
+            // 订单已经落库，状态写失败不影响确认消息
+            log.error("写入批量订单状态失败，size={}", voucherOrders.size(), e);
         }
     }
 
-
-
     /* *//*
     阻塞队列有一个特点：当一个线程尝试从阻塞队列里获取元素的时候，如果没有元素，那么该线程就会被阻塞，直到队列中有元素，才会被唤醒，并去获取元素
 阻塞队列的创建需要指定一个大小
@@ -176,62 +157,150 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        ////1.获取用户
-        Long userId = voucherOrder.getUserId();
-        //2. 创建锁对象(新增代码)
-        //SimpleRedisLock redisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        //3. 获取锁对象
-        //boolean isLock = redisLock.tryLock(1200);
-        //尝试获取锁，参数分别是：获取锁的最大等待时间(期间会重试)，锁自动释放时间，时间单位(1,10,TimeUnit.SECONDS);
-        boolean isLock = redisLock.tryLock();
-
-        //4.获取锁失败
-        if(!isLock){
-            //获取锁失败 返回错误或重试
-            log.error("不允许重复下单！");
-            return;
-        }
-        try {
-            //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            //5. 使用代理对象，由于这里是另外一个线程
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            //释放锁
-            redisLock.unlock();
+    @Override
+    public void handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 一人一单由 tb_voucher_order 的唯一索引(user_id, voucher_id)保证，不再需要按用户加分布式锁
+        //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
+        //使用代理对象，由于这里是另外一个线程
+        boolean created = proxy.createVoucherOrder(voucherOrder);
+        // 事务提交后再写订单状态，客户端查到CREATED时订单一定已经落库
+        if (created) {
+            orderStatusTracker.markCreated(voucherOrder.getId(), voucherOrder.getUserId());
+            orderTimeoutCanceller.schedule(voucherOrder.getId());
+        } else {
+            orderStatusTracker.markFailed(voucherOrder.getId(), voucherOrder.getUserId());
         }
     }
 
 
 
+    /**
+     * 当前bean的代理对象，消费线程里调用事务方法要通过它。
+     * 以前是在seckillVoucher里用AopContext获取，没接到过秒杀请求的实例消费时会拿到null
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     public Result seckillVoucher(Long voucherId) {//voucherId 优惠券id
         //获取用户
         Long userId = UserHolder.getUser().getId();
+        // 0.本地登记表：未开始、已结束、已售罄的券直接拒绝，不访问Redis
+        String rejected = localRegistry.check(voucherId);
+        if (rejected != null) {
+            return Result.fail(rejected);
+        }
         //订单id
         long orderId = redisIdWorker.nextId("order");
 
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        // 0.1.热点券走本地库存租约
+        if (stockLeaser.isLeased(voucherId)) {
+            return seckillWithLease(voucherId, userId, orderId);
+        }
+        // 0.2.Redis Cluster部署走分片库存
+        if (stockShards.isEnabled()) {
+            return seckillWithShards(voucherId, userId, orderId);
+        }
+        return seckillWithRedis(voucherId, userId, orderId);
+    }
+
+    private Result seckillWithRedis(Long voucherId, Long userId, long orderId) {
+        // 1.执行lua脚本，开启请求合并时和同一张券的并发请求一起执行
+        int r;
+        if (coalescer.isEnabled()) {
+            r = coalescer.seckill(voucherId, userId, orderId);
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    seckillDedupe.withArgs(voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                            String.valueOf(orderQueue.streamPartitions()))
+            );
+            r = result.intValue();
+        }
 
         // 2.判断结果是否为0
-        int r = result.intValue();
         if(r != 0){
             // 2.1.不为0 ，代表没有购买资格
+            if (r == SeckillCoalescer.TIMEOUT) {
+                // 合并执行的脚本没有及时返回，结果未知，让用户稍后重试(已经下单的会提示重复下单)
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            if (r == 3 || r == 4) {
+                // 2.2.Redis判断不在秒杀时间内，本地登记的时间已经过期，重新加载
+                localRegistry.evict(voucherId);
+                return Result.fail(r == 3 ? "秒杀尚未开始！" : "秒杀已经结束！");
+            }
+            if (r == 1) {
+                // 售罄后的请求在本地拒绝
+                localRegistry.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        //3.主线程获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //3.有购买资格，订单交给队列异步落库(Redis Stream模式下lua脚本已经写入)
+        orderQueue.publish(newVoucherOrder(orderId, userId, voucherId));
         //4.返回订单id
         return Result.ok(orderId);
     }
 
+    private Result seckillWithShards(Long voucherId, Long userId, long orderId) {
+        // 1.从随机分片开始扣库存，所有分片都扣不到才是真的卖完了
+        int shard = stockShards.tryTake(voucherId);
+        if (shard < 0) {
+            localRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        // 2.一人一单校验 + 发消息，订单key和stream在同一个slot
+        if (stockShards.order(voucherId, userId, orderId) != 0) {
+            // 2.1.重复下单，库存还回原来的分片
+            stockShards.giveBack(voucherId, shard);
+            return Result.fail("不能重复下单");
+        }
+        //3.返回订单id
+        return Result.ok(orderId);
+    }
+
+    private Result seckillWithLease(Long voucherId, Long userId, long orderId) {
+        // 1.本节点已经卖给过这个用户，不用再去Redis
+        if (stockLeaser.isKnownBuyer(voucherId, userId)) {
+            return Result.fail("不能重复下单");
+        }
+        // 2.从本地租约中扣库存，本地卖完了才会去Redis续租
+        if (!stockLeaser.tryAcquire(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 3.一人一单校验 + 发消息，不碰库存key
+        Long result = stringRedisTemplate.execute(
+                SECKILL_LEASED_SCRIPT,
+                Collections.emptyList(),
+                seckillDedupe.withArgs(voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                        String.valueOf(orderQueue.streamPartitions()), partitionManager.getInstanceId())
+        );
+        int r = result.intValue();
+        if (r == 1) {
+            // 租约已经被回收，本地库存作废。回收的库存已经还给Redis，这次请求直接去Redis扣
+            stockLeaser.invalidate(voucherId);
+            return seckillWithRedis(voucherId, userId, orderId);
+        }
+        if (r == 2) {
+            // 重复下单，库存还回本地
+            stockLeaser.release(voucherId);
+            stockLeaser.markBuyer(voucherId, userId);
+            return Result.fail("不能重复下单");
+        }
+        stockLeaser.markBuyer(voucherId, userId);
+        orderQueue.publish(newVoucherOrder(orderId, userId, voucherId));
+        return Result.ok(orderId);
+    }
+
+    private VoucherOrder newVoucherOrder(long orderId, Long userId, Long voucherId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        return voucherOrder;
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {//voucherId 优惠券id
         //获取用户
@@ -338,33 +407,97 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     //在方法上添加了一把synchronized 锁,，但是这样添加锁，锁的粒度太粗了
-    public void createVoucherOrder(VoucherOrder voucherOrder) {//创建订单
-        // 新增一人一单 并发存在问题需要加锁
-        // 用户id
-        Long userId = voucherOrder.getUserId();
-
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder).count();
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {//创建订单
+        // 1.先插入订单，唯一索引(user_id, voucher_id)冲突时INSERT IGNORE不插入，返回0
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
         //判断是否存在
-        if (count > 0) {
-            // 用户已经购买过了
+        if (inserted == 0) {
+            // 用户已经购买过了。同一条消息重复消费时订单本身就在库里，算成功
             log.error("用户已经购买过一次！");
-            return;
+            return getById(voucherOrder.getId()) != null;
         }
 
-        // 5. 扣减库存
+        // 2. 订单确实插入了才扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")//set条件
-                .eq("voucher_id", voucherOrder)
+                .eq("voucher_id", voucherOrder.getVoucherId())
                 //.eq("voucher_id", voucherId)//while条件 id= ？ stock = ？ 失败率很高
                 .gt("stock", 0)
                 .update();
 
         if (!success) {
-            //扣减库存
+            //扣减库存失败，回滚刚插入的订单
             log.error("库存不足！");
-            return;
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
-        //6.创建订单
-        save(voucherOrder);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，同一张券的库存只扣一次
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            // 2.一人一单：一条多行INSERT IGNORE，数据库里已经下过单的用户和同一批里重复的用户都不会插入
+            int inserted = getBaseMapper().insertBatch(orders);
+            if (inserted < orders.size()) {
+                log.error("用户已经购买过一次！voucherId={}, 忽略{}条", voucherId, orders.size() - inserted);
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            // 3.按实际插入的条数扣减这张券的库存 stock = stock - n where stock >= n
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                // 抛异常让整批回滚，交给逐条处理
+                throw new IllegalStateException("库存不足！voucherId=" + voucherId);
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId) {
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null) {
+            return false;
+        }
+        // 1.只取消未支付的订单，带上status条件，和支付同时发生时只有一个能成功
+        boolean cancelled = update()
+                .set("status", 4)
+                .eq("id", orderId)
+                .eq("status", 1)
+                .update();
+        if (!cancelled) {
+            return false;
+        }
+        // 2.数据库库存还回去
+        Long voucherId = voucherOrder.getVoucherId();
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherId)
+                .update();
+        // 3.事务提交后再还Redis库存，并通知所有实例清掉售罄标记。一人一单记录保留，和唯一索引一致
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (stockShards.isEnabled()) {
+                    stockShards.returnStock(voucherId);
+                } else {
+                    stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId);
+                }
+                localRegistry.publishInvalidate(voucherId);
+            }
+        });
+        return true;
     }
-}
\ No newline at end of file
+}
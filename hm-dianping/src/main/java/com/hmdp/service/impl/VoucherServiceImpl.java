@@ -7,9 +7,15 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillArchiver;
+import com.hmdp.utils.SeckillLocalRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherLoader;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -33,6 +39,18 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillLocalRegistry localRegistry;
+
+    @Resource
+    private SeckillStockShards stockShards;
+
+    @Resource
+    private SeckillVoucherLoader seckillVoucherLoader;
+
+    @Resource
+    private SeckillArchiver seckillArchiver;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -62,8 +80,23 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         // 保存秒杀库存到Redis中
         //SECKILL_STOCK_KEY 这个变量定义在RedisConstans中
         //private static final String SECKILL_STOCK_KEY ="seckill:stock:" stock库存
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
-
+        if (stockShards.isEnabled()) {
+            // Redis Cluster部署：库存预先拆到多个分片 seckill:stock:{id:s}
+            stockShards.split(voucher.getId(), voucher.getStock());
+        } else {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        }
+        // 秒杀时间和库存写入 seckill:voucher:{id}，seckill.lua在Redis中判断秒杀时间
+        seckillVoucherLoader.cache(seckillVoucher);
+        // 事务提交后再通知所有实例清掉这张券的本地售罄/时间记录，避免其它实例读到未提交的数据
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                localRegistry.publishInvalidate(voucher.getId());
+                // 秒杀结束后归档、清理这张券的key
+                seckillArchiver.schedule(seckillVoucher);
+            }
+        });
 
     }
 }
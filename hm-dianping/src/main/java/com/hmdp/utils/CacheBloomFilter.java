@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * 防缓存穿透的布隆过滤器
+ * <p>
+ * 位图存在Redis的string中(SETBIT/GET)，每个实例在内存里保留一份一样的拷贝，
+ * 查询只看本地拷贝，不访问Redis。本地拷贝和Redis位图的字节布局相同(第i位在第i/8个字节的高位起第i%8位)，
+ * 整体加载就是一次GET。
+ * 位数和哈希函数个数按预计元素个数和误判率计算，元素个数超过预期后误判率会变高。
+ * </p>
+ */
+public class CacheBloomFilter {
+
+    /**
+     * Redis中string的最大长度是512MB
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private static final DefaultRedisScript<Long> MERGE_SCRIPT;
+
+    static {
+        MERGE_SCRIPT = new DefaultRedisScript<>();
+        MERGE_SCRIPT.setLocation(new ClassPathResource("mapper/bloom_merge.lua"));
+        MERGE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * 本地拷贝，加载完成之前为null，这时不做任何拦截
+     */
+    private volatile byte[] bitmap;
+
+    public CacheBloomFilter(StringRedisTemplate stringRedisTemplate, String key,
+                            long expectedInsertions, double falsePositiveRate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        // m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long n = Math.max(expectedInsertions, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        // 按字节对齐，本地拷贝和Redis中的长度一致
+        this.bits = Math.min((m + 7) / 8 * 8, MAX_BITS);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    }
+
+    /**
+     * 是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(Object id) {
+        byte[] local = bitmap;
+        if (local == null) {
+            return true;
+        }
+        for (long position : positions(id)) {
+            if (!get(local, position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素：先写本地拷贝，再用一个pipeline写入Redis
+     */
+    public void put(Object id) {
+        long[] positions = positions(id);
+        putLocal(positions);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long position : positions) {
+                conn.setBit(key, position, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写本地拷贝，收到其它实例的新增通知时使用
+     */
+    public void putLocal(Object id) {
+        putLocal(positions(id));
+    }
+
+    private synchronized void putLocal(long[] positions) {
+        byte[] local = bitmap;
+        if (local == null) {
+            return;
+        }
+        for (long position : positions) {
+            local[(int) (position >>> 3)] |= (byte) (0x80 >>> (position & 7));
+        }
+    }
+
+    /**
+     * 全量重建：loader把所有元素逐个交给回调，建好的位图先写临时key，再由bloom_merge.lua合并到正式key，
+     * 其它实例不会读到建了一半的位图，重建期间其它实例新增的元素也不会丢。最后把合并结果加载到本地
+     *
+     * @param loader 参数是添加元素的回调
+     */
+    public void rebuild(Consumer<Consumer<Object>> loader) {
+        byte[] building = new byte[(int) (bits >>> 3)];
+        loader.accept(id -> {
+            for (long position : positions(id)) {
+                building[(int) (position >>> 3)] |= (byte) (0x80 >>> (position & 7));
+            }
+        });
+        String tmpKey = key + ":building";
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey.getBytes(StandardCharsets.UTF_8), building);
+            return null;
+        });
+        stringRedisTemplate.execute(MERGE_SCRIPT, Arrays.asList(key, tmpKey));
+        if (!reload()) {
+            // 合并后马上被删掉了，至少用本地建好的
+            synchronized (this) {
+                bitmap = building;
+            }
+        }
+    }
+
+    /**
+     * 把Redis中的位图合并到本地拷贝，补上错过的新增通知。只做OR，不会丢掉本地刚写入、Redis还没写完的位。
+     * Redis中的位图大小和当前配置不一致时不加载
+     *
+     * @return 是否加载成功
+     */
+    public boolean reload() {
+        byte[] loaded = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        if (loaded == null || loaded.length != bits >>> 3) {
+            return false;
+        }
+        synchronized (this) {
+            byte[] local = bitmap;
+            if (local == null) {
+                bitmap = loaded;
+            } else {
+                for (int i = 0; i < local.length; i++) {
+                    local[i] |= loaded[i];
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 双重哈希 h1 + i*h2 算出元素的所有bit位置
+     */
+    private long[] positions(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString().getBytes(StandardCharsets.UTF_8));
+        long[] positions = new long[hashes];
+        long combined = hash[0];
+        for (int i = 0; i < hashes; i++) {
+            positions[i] = (combined & Long.MAX_VALUE) % bits;
+            combined += hash[1];
+        }
+        return positions;
+    }
+
+    private static boolean get(byte[] bitmap, long position) {
+        return (bitmap[(int) (position >>> 3)] & (0x80 >>> (position & 7))) != 0;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+}
@@ -1,72 +1,269 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.core.util.IdUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.CacheClientProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * Redis缓存工具类
+ * <p>
+ * 可选的进程内一级缓存(Caffeine，W-TinyLFU淘汰)放在Redis前面，存的是已经反序列化好的对象，
+ * 热点key不用每次都GET + 解码。一级缓存中的对象是共享的，调用方不要修改。
+ * 写缓存和删除缓存都要走这个类，通过 cache:invalidate 频道通知所有实例清掉一级缓存。
+ * 每一级的命中情况导出为 cache.requests{tier, result} 和 cache.hit.ratio{tier}。
+ * 值的格式见 CacheValues：固定长度的头部(编码方式、逻辑过期时间) + 按 hmdp.cache.codec 编码的对象。
+ * </p>
+ */
 @Slf4j
 @Component //spring 维护
 
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    /**
+     * 读写缓存值用的，value是CacheValues格式的字节
+     */
+    private final RedisTemplate<String, byte[]> bytesRedisTemplate;
+
+    /**
+     * 写入时使用的编码方式，读取时按值头部记录的编码方式解码
+     */
+    private final CacheCodec codec;
+
+    /**
+     * 一级缓存，未开启时为null
+     */
+    private final Cache<String, Cached> l1;
+
+    /**
+     * 当前节点的id，用来忽略自己发出的失效通知
+     */
+    private final String nodeId = IdUtil.fastSimpleUUID();
+
+    /**
+     * 按key前缀注册的布隆过滤器，一定不存在的id直接返回null，不查Redis也不查数据库
+     */
+    private final Map<String, CacheBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    private final Counter bloomRejects;
+    private final Counter l1Hits;
+    private final Counter l1Misses;
+    private final Counter redisHits;
+    private final Counter redisMisses;
+
+    /**
+     * 一级缓存中的值，逻辑过期的数据带上过期时间，过期后还要走原来的重建流程
+     */
+    private static class Cached {
+        private final Object value;
+        private final long expireAt;
+        private final int weight;
+
+        private Cached(Object value, long expireAt, int weight) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.weight = weight;
+        }
+
+        private boolean isFresh(long now) {
+            return expireAt == 0 || expireAt > now;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheClientProperties cacheClientProperties,
+                       RedisMessageListenerContainer listenerContainer, MeterRegistry meterRegistry){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bytesRedisTemplate = new RedisTemplate<>();
+        bytesRedisTemplate.setConnectionFactory(stringRedisTemplate.getRequiredConnectionFactory());
+        bytesRedisTemplate.setKeySerializer(RedisSerializer.string());
+        bytesRedisTemplate.setValueSerializer(RedisSerializer.byteArray());
+        bytesRedisTemplate.afterPropertiesSet();
+        this.codec = JacksonCacheCodec.of(cacheClientProperties.getCodec());
+        this.l1 = buildL1(cacheClientProperties.getL1());
+        if (l1 != null) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        }
+        this.bloomRejects = requests(meterRegistry, "bloom", "reject");
+        this.l1Hits = requests(meterRegistry, "l1", "hit");
+        this.l1Misses = requests(meterRegistry, "l1", "miss");
+        this.redisHits = requests(meterRegistry, "redis", "hit");
+        this.redisMisses = requests(meterRegistry, "redis", "miss");
+        Gauge.builder("cache.hit.ratio", this, c -> ratio(c.l1Hits, c.l1Misses)).tag("tier", "l1").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", this, c -> ratio(c.redisHits, c.redisMisses)).tag("tier", "redis").register(meterRegistry);
+    }
+
+    private static Cache<String, Cached> buildL1(CacheClientProperties.L1 config) {
+        if (!config.isEnabled()) {
+            return null;
+        }
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .expireAfterWrite(config.getExpireAfterWriteMs(), TimeUnit.MILLISECONDS);
+        if (config.getMaxWeightBytes() > 0) {
+            // 按序列化后的大小限制总量，大对象占得多
+            return builder.maximumWeight(config.getMaxWeightBytes())
+                    .weigher((String key, Cached cached) -> cached.weight)
+                    .build();
+        }
+        return builder.maximumSize(config.getMaxSize()).build();
+    }
+
+    private static Counter requests(MeterRegistry meterRegistry, String tier, String result) {
+        return Counter.builder("cache.requests").tag("tier", tier).tag("result", result).register(meterRegistry);
+    }
+
+    private static double ratio(Counter hits, Counter misses) {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    /**
+     * 为某个key前缀注册布隆过滤器，之后这个前缀的查询先经过过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, CacheBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在时返回true
+     */
+    private boolean rejectedByBloom(String keyPrefix, Object id) {
+        CacheBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || bloomFilter.mightContain(id)) {
+            return false;
+        }
+        bloomRejects.increment();
+        return true;
+    }
+
+    /**
+     * 删除缓存，并通知所有实例清掉一级缓存。更新数据库后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        publishInvalidate(key);
+    }
+
+    private void publishInvalidate(String key) {
+        if (l1 != null) {
+            // 本地先清掉，消息带上自己的节点id，绕一圈回来时忽略，免得把刚放进去的新值又清掉
+            l1.invalidate(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + ":" + key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 消息格式 nodeId:key
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int sep = body.indexOf(':');
+        if (sep > 0 && !body.substring(0, sep).equals(nodeId)) {
+            l1.invalidate(body.substring(sep + 1));
+        }
+    }
+
+    private Cached getL1(String key) {
+        if (l1 == null) {
+            return null;
+        }
+        Cached cached = l1.getIfPresent(key);
+        (cached == null ? l1Misses : l1Hits).increment();
+        return cached;
+    }
+
+    private void putL1(String key, Object value, long expireAt, byte[] bytes) {
+        if (l1 != null) {
+            l1.put(key, new Cached(value, expireAt, bytes.length));
+        }
     }
 
-    // 方法1：将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+    // 方法1：将任意Java对象编码后存储在string类型的key中，并且可以设置TTL过期时间
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        bytesRedisTemplate.opsForValue().set(key, CacheValues.encode(codec, value, 0), time, unit);
+        publishInvalidate(key);
     }
 
-    //* 方法2：将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+    //* 方法2：将任意Java对象编码后存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //设置逻辑过期
-        //由于需要设置逻辑过期时间，所以我们需要用到RedisData
-        RedisData redisdata = new RedisData();
-        //redisData的data就是传进来的value对象
-        redisdata.setData(value);
-        //逻辑过期时间就是当前时间加上传进来的参数时间，用TimeUnit可以将时间转为秒，随后与当前时间相加
-        redisdata.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //逻辑过期时间就是当前时间加上传进来的参数时间，写在值的头部
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
         //写入redis
-        //由于是逻辑过期，所以这里不需要设置过期时间，只存一下key和value就好了，同时注意value是ridisData类型
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisdata));
+        //由于是逻辑过期，所以这里不需要设置过期时间，只存一下key和value就好了
+        bytesRedisTemplate.opsForValue().set(key, CacheValues.encode(codec, value, expireAt));
+        publishInvalidate(key);
     }
 
     //方法3：根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
     //返回任意类型不确定，使用泛型
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){//keyPrefix前缀,Function<ID, R> dbFallback:ID参数类型，R返回值类型
+        //0. 布隆过滤器判断一定不存在，直接返回，不用再缓存空值
+        if (rejectedByBloom(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        //1. 先从Redis中查商铺缓存，这里的常量值是固定的前缀 + 店铺id
-        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //3. 如果不为空（查询到了），则直接返回
-            return JSONUtil.toBean(json, type);
+        //0.1 先查一级缓存
+        Cached cached = getL1(key);
+        if (cached != null) {
+            return type.cast(cached.value);
         }
-        ////如果查询到的是空字符串，则说明是我们缓存的空数据（缓存穿透相关）
-        if(json != null){//不等于null，就是空值
-            return null;
+        //1. 再从Redis中查缓存，key是前缀 + id
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        //2.判断是否存在
+        if (bytes != null) {
+            redisHits.increment();
+            //3. 查询到了，放进一级缓存后返回；如果查询到的是空字符串，则说明是我们缓存的空数据（缓存穿透相关）
+            return parseAndCache(key, bytes, type);
         }
-        //4. 不存在，否则去数据库中查
+        redisMisses.increment();
+        //4. 不存在，去数据库中查，同一个key并发未命中时本实例只查一次
+        return singleFlight(key, () -> loadAndCache(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 查数据库并写入缓存，不存在时缓存空值
+     */
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         R r = dbFallback.apply(id);
         //5.不存在，返回错误，查不到返回一个错误信息或者返回空都可以，根据自己的需求来
         if (r == null){
             //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            bytesRedisTemplate.opsForValue().set(key, CacheValues.TOMBSTONE, CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
         //6. 并存入redis
@@ -75,36 +272,177 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 正在加载中的key，同一个key的并发未命中共用一个future
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 等待同一个key加载结果的最长时间(秒)。加载的线程最多等互斥锁LOCK_SHOP_TTL秒，之后还要自己查一次数据库，
+     * 再多留一个LOCK_SHOP_TTL给这次查询，否则别的实例持有锁时，等待的线程会在它开始查库时一起超时
+     */
+    private static final long SINGLE_FLIGHT_WAIT_SECONDS = LOCK_SHOP_TTL * 2;
+
+    /**
+     * 同一个key同一时间在本实例只执行一次loader，其它线程等待同一个结果，不再各自休眠重试。
+     * 最多等SINGLE_FLIGHT_WAIT_SECONDS秒，加载线程卡住时等待的线程不会一直挂着
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            // 已经有线程在加载，等它的结果
+            try {
+                return (R) running.get(SINGLE_FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("加载缓存失败：" + key, cause);
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("等待加载缓存超时：" + key, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待加载缓存被中断：" + key, e);
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (Throwable e) {
+            // Error也要通知等待的线程，否则它们会一直等到超时
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 先complete再移除，之后再未命中的请求会重新加载(那时缓存已经写好了)
+            inFlight.remove(key, future);
+        }
+    }
+
+    //方法4：根据指定的key查询缓存，利用互斥锁解决缓存击穿问题
+    //本实例内先经过singleFlight，只有一个线程去竞争Redis互斥锁，其它线程等它的结果
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        //0. 布隆过滤器判断一定不存在，直接返回
+        if (rejectedByBloom(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        //0.1 先查一级缓存
+        Cached cached = getL1(key);
+        if (cached != null) {
+            return type.cast(cached.value);
+        }
+        //1. 查Redis，命中直接返回
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        if (bytes != null) {
+            redisHits.increment();
+            return parseAndCache(key, bytes, type);
+        }
+        redisMisses.increment();
+        //2. 未命中，本实例只有一个线程去重建
+        return singleFlight(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit));
+    }
+
+    /**
+     * 竞争Redis互斥锁重建缓存。拿不到锁说明其它实例正在重建，等一会儿再看Redis，
+     * 每个实例只有一个线程在等；锁过期了还没等到，就自己查数据库
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = lockKeyOf(key);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        long backoff = 10;
+        while (true) {
+            //1. 获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    //2. 拿到锁后再查一次Redis，可能在等锁的时候已经被别人重建好了
+                    byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+                    if (bytes != null) {
+                        return parseAndCache(key, bytes, type);
+                    }
+                    //3. 查数据库并写入缓存
+                    return loadAndCache(key, id, dbFallback, time, unit);
+                } finally {
+                    //4. 释放互斥锁
+                    unlock(lockKey);
+                }
+            }
+            //5. 没拿到锁，等一会儿看看别人重建好没有
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断", e);
+            }
+            backoff = Math.min(backoff * 2, 100);
+            byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+            if (bytes != null) {
+                return parseAndCache(key, bytes, type);
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // 持锁的实例可能已经挂了，不再等下去
+                return loadAndCache(key, id, dbFallback, time, unit);
+            }
+        }
+    }
+
+    /**
+     * 解析Redis中的值并放进一级缓存，空字符串是缓存的空值，返回null
+     */
+    private <R> R parseAndCache(String key, byte[] bytes, Class<R> type) {
+        if (CacheValues.isTombstone(bytes)) {
+            return null;
+        }
+        R r = CacheValues.decode(bytes, type);
+        putL1(key, r, CacheValues.expireAt(bytes), bytes);
+        return r;
+    }
+
 
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){//缓存击穿 包装了原来的queryById
+        //0. 布隆过滤器判断一定不存在，直接返回
+        if (rejectedByBloom(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        //1. 先从Redis中查商铺缓存，这里的常量值是固定的前缀 + 店铺id
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
+        //0.1 先查一级缓存，逻辑上没过期就直接返回；过期了去Redis看看有没有被别的实例重建过
+        Cached cached = getL1(key);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            return type.cast(cached.value);
+        }
+        //1. 再从Redis中查缓存，key是前缀 + id
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
         //2.todo 判断是否存在 是否命中
-        if (StrUtil.isBlank(json)) { //3. 如果为空 //不存在 未命中
+        if (bytes == null || CacheValues.isTombstone(bytes)) { //3. 如果为空 //不存在 未命中
+            redisMisses.increment();
             //直接返回
             return null;
         }
-        //todo  4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        //todo 4.1 将data转为Shop对象
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        //todo 4.2 获取过期时间
-        LocalDateTime expireTime = redisData.getExpireTime();
+        redisHits.increment();
+        //todo  4.命中，一次解码直接得到目标对象
+        R r = CacheValues.decode(bytes, type);
+        //todo 4.2 获取过期时间，在头部，不用解码
+        long expireAt = CacheValues.expireAt(bytes);
+        putL1(key, r, expireAt, bytes);
 
         //todo 5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){//过期时间是不是在当前时间之后
+        if(expireAt == 0 || expireAt > System.currentTimeMillis()){//过期时间是不是在当前时间之后
             //todo  5.1.未过期，直接返回店铺信息
             return r;
         }
         // 5.2.已过期，需要缓存重建
         //todo 6.缓存重建
         // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = lockKeyOf(key);
         boolean flag = tryLock(lockKey);
 
         //todo  6.2.判断是否获取锁成功
@@ -130,6 +468,144 @@ public class CacheClient {
         return r;
     }
 
+    //方法5：批量查询。一次MGET，未命中的一次 WHERE id IN (...) 查数据库，再用一个pipeline写回，
+    //不管多少个id都只有固定几次网络往返。结果按ids的顺序返回，不存在的位置是null
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> batchDbFallback,
+                                      Function<R, ID> idOf, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, batchDbFallback, idOf, time, unit, false);
+    }
+
+    //和queryWithLogicalExpire一样写入逻辑过期时间的批量查询，逻辑过期的数据先返回旧值，再异步批量重建
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> batchDbFallback,
+                                                       Function<R, ID> idOf, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, batchDbFallback, idOf, time, unit, true);
+    }
+
+    private <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> batchDbFallback,
+                                       Function<R, ID> idOf, Long time, TimeUnit unit, boolean logicalExpire) {
+        List<R> result = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        long now = System.currentTimeMillis();
+        //1. 布隆过滤器和一级缓存，剩下的去Redis查
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if (rejectedByBloom(keyPrefix, id)) {
+                continue;
+            }
+            Cached cached = getL1(keyPrefix + id);
+            if (cached != null && cached.isFresh(now)) {
+                result.set(i, type.cast(cached.value));
+                continue;
+            }
+            pending.add(i);
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+        //2. 一次MGET查Redis
+        List<String> keys = new ArrayList<>(pending.size());
+        for (Integer i : pending) {
+            keys.add(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = bytesRedisTemplate.opsForValue().multiGet(keys);
+        // 同一个id可能出现多次，去重后再查数据库
+        Set<ID> missIds = new LinkedHashSet<>();
+        Set<ID> expiredIds = new LinkedHashSet<>();
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            byte[] bytes = values == null ? null : values.get(j);
+            if (bytes == null) {
+                redisMisses.increment();
+                missIds.add(ids.get(i));
+                continue;
+            }
+            redisHits.increment();
+            // 空值解析出来是null
+            result.set(i, parseAndCache(keys.get(j), bytes, type));
+            if (logicalExpire && !CacheValues.isTombstone(bytes)) {
+                long expireAt = CacheValues.expireAt(bytes);
+                if (expireAt != 0 && expireAt <= now) {
+                    expiredIds.add(ids.get(i));
+                }
+            }
+        }
+        //3. 未命中的一次查数据库并写回
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = loadBatch(keyPrefix, new ArrayList<>(missIds), batchDbFallback, idOf, time, unit, logicalExpire);
+            for (int i = 0; i < ids.size(); i++) {
+                R r = loaded.get(ids.get(i));
+                if (r != null) {
+                    result.set(i, r);
+                }
+            }
+        }
+        //4. 逻辑过期的，拿到锁的那些交给一个异步任务批量重建
+        if (!expiredIds.isEmpty()) {
+            List<ID> locked = new ArrayList<>();
+            for (ID id : expiredIds) {
+                if (tryLock(lockKeyOf(keyPrefix + id))) {
+                    locked.add(id);
+                }
+            }
+            if (!locked.isEmpty()) {
+                CACHE_REBUILD_EXECUTOR.submit(() -> {
+                    try {
+                        loadBatch(keyPrefix, locked, batchDbFallback, idOf, time, unit, true);
+                    } finally {
+                        locked.forEach(id -> unlock(lockKeyOf(keyPrefix + id)));
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一次批量查数据库，再用一个pipeline写回Redis。数据库中也没有的id缓存空值(逻辑过期格式不缓存空值，和queryWithLogicalExpire一致)
+     */
+    private <R, ID> Map<ID, R> loadBatch(String keyPrefix, List<ID> ids, Function<List<ID>, List<R>> batchDbFallback,
+                                         Function<R, ID> idOf, Long time, TimeUnit unit, boolean logicalExpire) {
+        Map<ID, R> loaded = new HashMap<>(ids.size() * 2);
+        for (R r : batchDbFallback.apply(ids)) {
+            loaded.put(idOf.apply(r), r);
+        }
+        long expireAt = logicalExpire ? System.currentTimeMillis() + unit.toMillis(time) : 0;
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                String key = keyPrefix + id;
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if (r == null) {
+                    if (!logicalExpire) {
+                        connection.set(rawKey, CacheValues.TOMBSTONE, Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                    }
+                    continue;
+                }
+                byte[] bytes = CacheValues.encode(codec, r, expireAt);
+                if (logicalExpire) {
+                    connection.set(rawKey, bytes);
+                } else {
+                    connection.set(rawKey, bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert());
+                }
+                putL1(key, r, expireAt, bytes);
+                // 和set()一样通知其它实例
+                if (l1 != null) {
+                    connection.publish(channel, (nodeId + ":" + key).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return loaded;
+    }
+
+    /**
+     * 互斥锁的key按缓存key生成，不同前缀下相同的id不会共用一把锁
+     */
+    private static String lockKeyOf(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
+
     private boolean tryLock(String key){
         //setIfAbsent() 方法的语义如下：
         //如果 Redis 中已经存在指定的键，则不执行任何操作，返回 false。
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 缓存值的编码方式
+ * <p>
+ * 编码后的数据前面还有 CacheValues 写入的固定长度头部，头部记录了编码方式的id，
+ * 切换编码方式后，旧编码写入的值仍然可以读出来。
+ * </p>
+ */
+public interface CacheCodec {
+
+    /**
+     * 写在头部的编码方式id，每种编码方式唯一
+     */
+    byte id();
+
+    /**
+     * 把对象编码后写入out
+     */
+    void encode(Object value, OutputStream out) throws IOException;
+
+    /**
+     * 从bytes[offset, offset + length)直接解码成目标类型
+     */
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type) throws IOException;
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * CacheClient写入Redis的值的格式
+ * <p>
+ * [0] 魔数0xCA，[1] 编码方式id，[2..9] 逻辑过期时间(毫秒时间戳，大端，0表示没有逻辑过期)，之后是编码后的对象。
+ * 过期时间在固定位置，不用解码对象就能判断是否过期；对象只解码一次，直接得到目标类型。
+ * 空值(缓存穿透)是长度为0的字符串。
+ * 升级前用Hutool写入的json(没有头部，第一个字节是'{')也能读，逻辑过期的值是RedisData格式。
+ * </p>
+ */
+public final class CacheValues {
+
+    public static final int HEADER_LENGTH = 10;
+
+    public static final byte[] TOMBSTONE = new byte[0];
+
+    private static final byte MAGIC = (byte) 0xCA;
+
+    private CacheValues() {
+    }
+
+    /**
+     * 编码：头部 + 对象
+     *
+     * @param expireAt 逻辑过期时间(毫秒时间戳)，0表示没有逻辑过期
+     */
+    public static byte[] encode(CacheCodec codec, Object value, long expireAt) {
+        ByteArrayBuilder out = new ByteArrayBuilder(256);
+        out.append(MAGIC);
+        out.append(codec.id());
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.append((byte) (expireAt >>> shift));
+        }
+        try {
+            codec.encode(value, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存值编码失败：" + value.getClass().getName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    public static boolean isTombstone(byte[] bytes) {
+        return bytes.length == 0;
+    }
+
+    /**
+     * 逻辑过期时间，只读头部；0表示没有逻辑过期
+     */
+    public static long expireAt(byte[] bytes) {
+        if (!hasHeader(bytes)) {
+            return legacyExpireAt(bytes);
+        }
+        long expireAt = 0;
+        for (int i = 2; i < HEADER_LENGTH; i++) {
+            expireAt = (expireAt << 8) | (bytes[i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    /**
+     * 按头部记录的编码方式把对象解码成目标类型
+     */
+    public static <T> T decode(byte[] bytes, Class<T> type) {
+        if (!hasHeader(bytes)) {
+            return legacyDecode(bytes, type);
+        }
+        try {
+            return codecOf(bytes[1]).decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存值解码失败：" + type.getName(), e);
+        }
+    }
+
+    private static boolean hasHeader(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    private static CacheCodec codecOf(byte id) {
+        if (id == JacksonCacheCodec.JSON.id()) {
+            return JacksonCacheCodec.JSON;
+        }
+        if (id == JacksonCacheCodec.SMILE.id()) {
+            return JacksonCacheCodec.SMILE;
+        }
+        throw new IllegalStateException("未知的缓存编码：" + id);
+    }
+
+    /**
+     * 旧格式：RedisData {expireTime, data} 或者直接是对象的json
+     */
+    private static boolean isLegacyRedisData(JSONObject json) {
+        return json.size() == 2 && json.containsKey("expireTime") && json.containsKey("data");
+    }
+
+    private static long legacyExpireAt(byte[] bytes) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if (!isLegacyRedisData(json)) {
+            return 0;
+        }
+        LocalDateTime expireTime = JSONUtil.toBean(json, RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static <T> T legacyDecode(byte[] bytes, Class<T> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if (isLegacyRedisData(json)) {
+            return JSONUtil.toBean(json.getJSONObject("data"), type);
+        }
+        return JSONUtil.toBean(json, type);
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 基于Jackson的缓存编码
+ * <p>
+ * JSON：文本格式，redis-cli里能直接看；SMILE：Jackson的二进制格式，字段名会回引用，体积更小、解码更快。
+ * 每种格式只有一个ObjectMapper，所有线程共用，序列化器/反序列化器只会构建一次。
+ * LocalDateTime按JavaTimeModule的数组格式写，比如[2021,12,22,18,10,39]，值为null的字段不写。
+ * </p>
+ */
+public class JacksonCacheCodec implements CacheCodec {
+
+    public static final JacksonCacheCodec JSON = new JacksonCacheCodec((byte) 1, new ObjectMapper());
+
+    public static final JacksonCacheCodec SMILE = new JacksonCacheCodec((byte) 2, new ObjectMapper(new SmileFactory()));
+
+    private final byte id;
+    private final ObjectMapper mapper;
+
+    private JacksonCacheCodec(byte id, ObjectMapper mapper) {
+        this.id = id;
+        this.mapper = mapper
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .disable(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                .disable(DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                // 实体加了字段后，旧节点写入的值还能读
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    /**
+     * 按配置的名称取编码方式：json / smile
+     */
+    public static JacksonCacheCodec of(String name) {
+        if ("smile".equalsIgnoreCase(name)) {
+            return SMILE;
+        }
+        if ("json".equalsIgnoreCase(name)) {
+            return JSON;
+        }
+        throw new IllegalArgumentException("不支持的缓存编码：" + name);
+    }
+
+    @Override
+    public byte id() {
+        return id;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream out) throws IOException {
+        mapper.writeValue(out, value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) throws IOException {
+        return mapper.readValue(bytes, offset, length, type);
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+
+/**
+ * 秒杀订单队列：秒杀成功的订单由这里交给消费线程异步落库
+ * <p>
+ * hmdp.seckill.order.queue 选择实现：
+ * stream(默认) 订单由lua脚本原子地写入 stream.orders.{n}，支持多实例、宕机不丢消息；
+ * ring 进程内预分配的环形队列，只适合单节点部署和压测，进程退出时队列里的订单会丢失。
+ * </p>
+ */
+public interface OrderQueue {
+
+    /**
+     * 传给lua脚本的stream分区数，0表示脚本不写stream，由调用方秒杀成功后publish
+     */
+    int streamPartitions();
+
+    /**
+     * 秒杀成功后入队。Redis Stream实现中订单已经由lua脚本写入，什么都不做
+     */
+    void publish(VoucherOrder voucherOrder);
+
+    /**
+     * 启动消费线程
+     */
+    void start(Handler handler);
+
+    /**
+     * 停止消费线程
+     */
+    void stop();
+
+    /**
+     * 订单的处理逻辑，抛出异常表示处理失败
+     */
+    interface Handler {
+        /**
+         * 处理一条订单
+         */
+        void handle(VoucherOrder voucherOrder);
+
+        /**
+         * 一个事务内处理一批订单，失败时整批回滚，由队列退回逐条处理
+         */
+        void handleBatch(List<VoucherOrder> voucherOrders);
+    }
+}
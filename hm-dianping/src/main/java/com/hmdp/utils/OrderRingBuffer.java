@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 预分配的无锁环形队列，多生产者多消费者
+ * <p>
+ * 容量是2的幂，槽位在构造时一次分配好，订单的三个字段直接写进long数组，入队不创建对象。
+ * 每个槽位有一个序号：等于生产位置p时可以写，写完置为p+1；等于p+1时可以读，读完置为p+容量，
+ * 留给下一圈的生产者。生产者和消费者各自CAS推进自己的游标，互不加锁。
+ * 消费者一次CAS认领一段连续的已发布槽位，批量取走。
+ * </p>
+ */
+public class OrderRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] ids;
+    private final long[] userIds;
+    private final long[] voucherIds;
+
+    /**
+     * 下一个写入位置
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 下一个读取位置
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    public OrderRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("环形队列容量必须是2的幂：" + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.ids = new long[capacity];
+        this.userIds = new long[capacity];
+        this.voucherIds = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 入队
+     *
+     * @return false表示队列已满
+     */
+    public boolean offer(long id, long userId, long voucherId) {
+        for (; ; ) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                // 1.槽位空闲，抢占这个位置
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ids[index] = id;
+                    userIds[index] = userId;
+                    voucherIds[index] = voucherId;
+                    // 2.发布，序号写入之前的字段写入对消费者可见
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // 上一圈的订单还没被取走，队列已满
+                return false;
+            }
+            // diff > 0：被别的生产者抢先了，重试
+        }
+    }
+
+    /**
+     * 取走最多max条已发布的订单，追加到out中
+     *
+     * @return 取走的条数，0表示队列为空
+     */
+    public int drainTo(List<VoucherOrder> out, int max) {
+        for (; ; ) {
+            long pos = head.get();
+            // 1.从head开始数连续已发布的槽位
+            int n = 0;
+            while (n < max && sequences.get((int) ((pos + n) & mask)) == pos + n + 1) {
+                n++;
+            }
+            if (n == 0) {
+                return 0;
+            }
+            // 2.一次CAS认领这一段，失败说明被别的消费者取走了，重新数
+            if (!head.compareAndSet(pos, pos + n)) {
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                int index = (int) ((pos + i) & mask);
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(ids[index]);
+                voucherOrder.setUserId(userIds[index]);
+                voucherOrder.setVoucherId(voucherIds[index]);
+                out.add(voucherOrder);
+                // 3.槽位还给下一圈的生产者
+                sequences.lazySet(index, pos + i + capacity);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * 队列中大致的订单数
+     */
+    public long size() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的处理状态
+ * <p>
+ * 消费者落库后把结果和下单用户写入 seckill:order:status:{orderId}(CREATED/FAILED:userId)并发布到
+ * seckill:order:status 频道。查询时先看Redis，还没有结果就挂起请求(DeferredResult)，
+ * 收到对应订单的通知立即返回，超时返回QUEUED，整个过程不查数据库。
+ * 只有下单用户本人能查到结果，别人的订单id返回"订单不存在"。
+ * </p>
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 本实例上等待结果的请求
+     */
+    private final Map<Long, Queue<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        private Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    public void markCreated(Long orderId, Long userId) {
+        mark(orderId, userId, CREATED);
+    }
+
+    public void markFailed(Long orderId, Long userId) {
+        mark(orderId, userId, FAILED);
+    }
+
+    private void mark(Long orderId, Long userId, String status) {
+        try {
+            // 1.写入状态和下单用户，带过期时间
+            String value = status + ":" + userId;
+            stringRedisTemplate.opsForValue().set(SECKILL_ORDER_STATUS_KEY + orderId, value,
+                    seckillProperties.getStatus().getTtlMs(), TimeUnit.MILLISECONDS);
+            // 2.通知所有实例上等待这个订单的请求
+            stringRedisTemplate.convertAndSend(SECKILL_ORDER_STATUS_CHANNEL, orderId + ":" + value);
+        } catch (Exception e) {
+            // 状态只是给客户端查询用的，写失败不影响订单本身
+            log.error("写入订单状态失败，orderId={}, status={}", orderId, status, e);
+        }
+    }
+
+    /**
+     * 长轮询查询订单状态，有结果立即返回，否则最多等待timeoutMs
+     */
+    public DeferredResult<Result> poll(Long orderId, Long userId, long timeoutMs) {
+        // 限制在[1, max-poll-timeout-ms]，0或负数会让DeferredResult用容器的默认超时，可能永远不超时
+        long timeout = Math.max(1, Math.min(timeoutMs, seckillProperties.getStatus().getMaxPollTimeoutMs()));
+        DeferredResult<Result> deferred = new DeferredResult<>(timeout, result(orderId, QUEUED));
+        // 1.已经有结果了直接返回
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value != null) {
+            deferred.setResult(result(orderId, userId, value));
+            return deferred;
+        }
+        // 2.挂起等待通知，结束(完成、超时或出错都会回调onCompletion)后移除，队列空了才删掉整个entry，不影响同一订单的其它请求
+        Waiter waiter = new Waiter(userId, deferred);
+        waiters.compute(orderId, (k, queue) -> {
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<>();
+            }
+            queue.add(waiter);
+            return queue;
+        });
+        deferred.onCompletion(() -> waiters.computeIfPresent(orderId, (k, queue) -> {
+            queue.remove(waiter);
+            return queue.isEmpty() ? null : queue;
+        }));
+        // 3.注册之前结果可能刚好写入，再查一次
+        value = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value != null) {
+            deferred.setResult(result(orderId, userId, value));
+        }
+        return deferred;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        Long orderId;
+        try {
+            orderId = Long.valueOf(body.substring(0, index));
+        } catch (NumberFormatException e) {
+            log.error("无效的订单状态通知：{}", body);
+            return;
+        }
+        Queue<Waiter> queue = waiters.get(orderId);
+        if (queue == null) {
+            return;
+        }
+        String value = body.substring(index + 1);
+        for (Waiter waiter : queue) {
+            waiter.deferred.setResult(result(orderId, waiter.userId, value));
+        }
+    }
+
+    /**
+     * value是 status:userId，不是本人的订单按不存在处理
+     */
+    private static Result result(Long orderId, Long userId, String value) {
+        int index = value.indexOf(':');
+        if (index < 0 || !value.substring(index + 1).equals(userId.toString())) {
+            return Result.fail("订单不存在");
+        }
+        return result(orderId, value.substring(0, index));
+    }
+
+    private static Result result(Long orderId, String status) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("orderId", orderId);
+        data.put("status", status);
+        return Result.ok(data);
+    }
+}
@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单stream的裁剪和监控
+ * <p>
+ * 确认过的消息不会自动从stream中删除，这里定时按消费进度裁剪自己负责的分区(stream_trim.lua，
+ * XTRIM MINID ~ pending-list中最早的消息)，并导出各分区的长度、每个消费者的pending条数、
+ * 最早pending消息的等待时间，以及本实例的消费速率，消费跟不上时可以提前扩容。
+ * </p>
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private static final DefaultRedisScript<List> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("mapper/stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(List.class);
+    }
+
+    private final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * 本实例确认的消息数，两次采样之间的差值算出消费速率
+     */
+    private Counter acked;
+    private double lastAcked;
+    private long lastSampleAt;
+    private final AtomicLong drainRate = new AtomicLong();
+
+    private final ScheduledExecutorService monitorExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        acked = Counter.builder("seckill.stream.acked")
+                .description("本实例确认的订单消息数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.stream.drain.rate", drainRate, AtomicLong::get)
+                .description("本实例每秒确认的订单消息数")
+                .register(meterRegistry);
+        lastSampleAt = System.currentTimeMillis();
+        long interval = seckillProperties.getOrder().getRetention().getIntervalMs();
+        monitorExecutor.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        monitorExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录确认的消息数，XACK之后调用
+     */
+    public void recordAck(int count) {
+        acked.increment(count);
+    }
+
+    private void run() {
+        sampleDrainRate();
+        String group = seckillProperties.getOrder().getGroup();
+        for (int partition = 0; partition < seckillProperties.getOrder().getPartitions(); partition++) {
+            String stream = partitionManager.streamKey(partition);
+            try {
+                sample(stream, group);
+            } catch (Exception e) {
+                log.error("采集订单stream指标异常，stream={}", stream, e);
+            }
+        }
+        // 只裁剪自己负责的分区
+        for (String stream : partitionManager.ownedStreams()) {
+            try {
+                trim(stream, group);
+            } catch (Exception e) {
+                log.error("裁剪订单stream异常，stream={}", stream, e);
+            }
+        }
+    }
+
+    private void sampleDrainRate() {
+        long now = System.currentTimeMillis();
+        double count = acked.count();
+        if (now > lastSampleAt) {
+            drainRate.set(Math.round((count - lastAcked) * 1000 / (now - lastSampleAt)));
+        }
+        lastAcked = count;
+        lastSampleAt = now;
+    }
+
+    private void sample(String stream, String group) {
+        // 1.XLEN stream
+        Long length = stringRedisTemplate.opsForStream().size(stream);
+        gauge("seckill.stream.length", stream, null).set(length == null ? 0 : length);
+        // 2.XPENDING stream group：总数、最早的id、每个消费者的条数
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group);
+        if (summary == null) {
+            return;
+        }
+        long oldestAge = 0;
+        if (summary.getTotalPendingMessages() > 0) {
+            // 消息id的前半段是XADD时的毫秒时间戳
+            String oldest = summary.minMessageId();
+            long addedAt = Long.parseLong(oldest.substring(0, oldest.indexOf('-')));
+            oldestAge = Math.max(0, System.currentTimeMillis() - addedAt);
+        }
+        gauge("seckill.stream.pending.oldest.age", stream, null).set(oldestAge);
+        // 3.已经没有pending消息的消费者归零，不然会一直停在最后一次的值
+        Map<String, Long> perConsumer = summary.getPendingMessagesPerConsumer();
+        String prefix = stream + "|";
+        for (Map.Entry<String, AtomicLong> entry : gauges.entrySet()) {
+            if (entry.getKey().startsWith("seckill.stream.pending|" + prefix)) {
+                entry.getValue().set(0);
+            }
+        }
+        for (Map.Entry<String, Long> entry : perConsumer.entrySet()) {
+            gauge("seckill.stream.pending", stream, entry.getKey()).set(entry.getValue());
+        }
+    }
+
+    private void trim(String stream, String group) {
+        long maxLen = seckillProperties.getOrder().getRetention().getMaxLen();
+        List<?> result = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(stream),
+                group, String.valueOf(maxLen));
+        if (result != null && ((Number) result.get(0)).longValue() > 0) {
+            log.debug("裁剪订单stream，stream={}, 删除={}, 保留自={}", stream, result.get(0), result.get(1));
+        }
+    }
+
+    private AtomicLong gauge(String name, String stream, String consumer) {
+        String key = consumer == null ? name + "|" + stream : name + "|" + stream + "|" + consumer;
+        return gauges.computeIfAbsent(key, k -> {
+            AtomicLong value = new AtomicLong();
+            Gauge.Builder<AtomicLong> builder = Gauge.builder(name, value, AtomicLong::get).tag("stream", stream);
+            if (consumer != null) {
+                builder.tag("consumer", consumer);
+            }
+            builder.register(meterRegistry);
+            return value;
+        });
+    }
+}
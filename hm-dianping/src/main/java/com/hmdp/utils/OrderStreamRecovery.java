@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+
+/**
+ * 订单消息的pending-list恢复
+ * <p>
+ * 后台定时扫描当前实例负责分区的pending-list(所有消费者的，包括已经下线的实例)，
+ * 空闲时间超过退避时间的消息用XCLAIM认领过来重新处理。退避时间按投递次数指数增长，
+ * 投递次数达到上限的消息转入死信队列 stream.orders.dlq，不会再卡住消费。
+ * </p>
+ */
+@Slf4j
+@Component
+public class OrderStreamRecovery {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private OrderStreamMonitor streamMonitor;
+
+    private final ScheduledExecutorService claimExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getOrder().getRecovery().getClaimIntervalMs();
+        claimExecutor.scheduleWithFixedDelay(this::claimPending, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        claimExecutor.shutdownNow();
+    }
+
+    private void claimPending() {
+        // 只扫描自己负责的分区，保证一个分区同一时间只有一个实例在认领
+        for (String stream : partitionManager.ownedStreams()) {
+            try {
+                claimPending(stream);
+            } catch (Exception e) {
+                log.error("认领pending消息异常，stream={}", stream, e);
+            }
+        }
+    }
+
+    private void claimPending(String stream) {
+        SeckillProperties.Order order = seckillProperties.getOrder();
+        String group = order.getGroup();
+        String claimer = partitionManager.getInstanceId() + "-claimer";
+        // 1.XPENDING stream g1 - + count，拿到每条消息的消费者、空闲时间和投递次数
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(stream, group, Range.unbounded(), order.getRecovery().getClaimBatchSize());
+        for (PendingMessage message : pending) {
+            // 2.还在退避时间内的先不管，可能消费者正在处理，也可能是刚失败过
+            Duration backoff = backoffOf(message.getTotalDeliveryCount());
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+                continue;
+            }
+            // 3.XCLAIM stream g1 claimer minIdle id，min-idle保证多个实例不会同时认领到同一条
+            List<MapRecord<String, Object, Object>> claimed = claim(stream, group, claimer, backoff, message.getId());
+            if (claimed.isEmpty()) {
+                // 已经被别人认领，或者消息已经被删除
+                if (stringRedisTemplate.opsForStream().range(stream, Range.just(message.getIdAsString())).isEmpty()) {
+                    stringRedisTemplate.opsForStream().acknowledge(stream, group, message.getId());
+                }
+                continue;
+            }
+            MapRecord<String, Object, Object> record = claimed.get(0);
+            // 4.投递次数用完，转入死信队列
+            if (message.getTotalDeliveryCount() >= order.getRecovery().getMaxDeliveries()) {
+                deadLetter(record, group, message.getTotalDeliveryCount());
+                continue;
+            }
+            // 5.重新处理，失败就留在pending-list里，投递次数+1，下次退避更久
+            try {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                voucherOrderService.handleVoucherOrder(voucherOrder);
+                stringRedisTemplate.opsForStream().acknowledge(stream, group, record.getId());
+                streamMonitor.recordAck(1);
+            } catch (Exception e) {
+                log.error("重试订单消息失败，stream={}, id={}, 投递次数={}",
+                        stream, record.getId(), message.getTotalDeliveryCount() + 1, e);
+            }
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> claim(String stream, String group, String consumer,
+                                                           Duration minIdle, RecordId id) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(
+                        stream.getBytes(StandardCharsets.UTF_8), group, consumer,
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+        if (records == null || records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> result = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            result.add(stringRedisTemplate.opsForStream().deserializeRecord(record));
+        }
+        return result;
+    }
+
+    /**
+     * 退避时间：base * 2^(投递次数-1)，不超过上限
+     */
+    private Duration backoffOf(long deliveryCount) {
+        SeckillProperties.Order.Recovery recovery = seckillProperties.getOrder().getRecovery();
+        long shift = Math.min(Math.max(deliveryCount - 1, 0), 30);
+        long backoff = Math.min(recovery.getRetryBackoffMs() << shift, recovery.getMaxRetryBackoffMs());
+        return Duration.ofMillis(backoff);
+    }
+
+    private void deadLetter(MapRecord<String, Object, Object> record, String group, long deliveryCount) {
+        Map<String, String> values = new HashMap<>();
+        record.getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+        // 记录来源，回放时放回原来的分区
+        values.put("sourceStream", record.getStream());
+        values.put("sourceId", record.getId().getValue());
+        values.put("deliveryCount", String.valueOf(deliveryCount));
+        // 1.写入死信队列后马上确认，后面出错也不会重复写入死信队列
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, values);
+        stringRedisTemplate.opsForStream().acknowledge(record.getStream(), group, record.getId());
+        streamMonitor.recordAck(1);
+        log.error("订单消息多次处理失败，转入死信队列，stream={}, id={}, values={}",
+                record.getStream(), record.getId(), record.getValue());
+        // 2.客户端不用再等了，回放成功后会重新写成CREATED。进死信队列的消息字段可能本身就是坏的
+        Long orderId = parseLong(values.get("id"));
+        Long userId = parseLong(values.get("userId"));
+        if (orderId == null || userId == null) {
+            log.warn("死信消息缺少订单id或用户id，不写订单状态，stream={}, id={}", record.getStream(), record.getId());
+            return;
+        }
+        orderStatusTracker.markFailed(orderId, userId);
+    }
+
+    /**
+     * 解析不了返回null
+     */
+    private static Long parseLong(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 查看死信队列中最早的count条消息
+     */
+    public List<Map<Object, Object>> listDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> result = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> values = new LinkedHashMap<>(record.getValue());
+            values.put("dlqId", record.getId().getValue());
+            result.add(values);
+        }
+        return result;
+    }
+
+    /**
+     * 把死信队列中最早的count条消息放回原来的分区重新消费，返回回放的条数。
+     * 字段不完整的消息留在死信队列里人工处理，不影响后面的消息
+     */
+    public int replayDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        int replayed = 0;
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> values = record.getValue();
+            Long userId = parseLong(values.get("userId"));
+            Long voucherId = parseLong(values.get("voucherId"));
+            Long orderId = parseLong(values.get("id"));
+            Object sourceStream = values.get("sourceStream");
+            if (userId == null || voucherId == null || orderId == null || sourceStream == null) {
+                log.warn("死信消息字段不完整，跳过回放，dlqId={}, values={}", record.getId(), values);
+                continue;
+            }
+            Map<String, String> order = new HashMap<>();
+            order.put("userId", userId.toString());
+            order.put("voucherId", voucherId.toString());
+            order.put("id", orderId.toString());
+            // 重新XADD是一条新消息，投递次数从0开始
+            stringRedisTemplate.opsForStream().add(sourceStream.toString(), order);
+            stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ_KEY, record.getId());
+            replayed++;
+        }
+        return replayed;
+    }
+}
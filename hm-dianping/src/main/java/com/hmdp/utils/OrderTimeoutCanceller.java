@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+/**
+ * 超时未支付订单的自动取消
+ * <p>
+ * 订单落库后放进延迟队列，到期时还是未支付就取消订单，把库存还给数据库和Redis。
+ * 默认关闭，由 hmdp.seckill.order.pay-timeout.enabled 开启。
+ * </p>
+ */
+@Slf4j
+@Component
+public class OrderTimeoutCanceller {
+
+    private static final String TOPIC = "order:timeout";
+
+    @Resource
+    private RedisDelayQueue redisDelayQueue;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @PostConstruct
+    private void init() {
+        if (!seckillProperties.getOrder().getPayTimeout().isEnabled()) {
+            return;
+        }
+        redisDelayQueue.register(TOPIC, member -> {
+            Long orderId = Long.valueOf(member);
+            if (voucherOrderService.cancelUnpaidOrder(orderId)) {
+                log.info("订单超时未支付，已取消，orderId={}", orderId);
+            }
+        });
+    }
+
+    /**
+     * 订单创建后调用，timeout-ms之后检查是否已支付。
+     * 同一条消息重复消费时不会推迟到期时间
+     */
+    public void schedule(Long orderId) {
+        SeckillProperties.Order.PayTimeout config = seckillProperties.getOrder().getPayTimeout();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + config.getTimeoutMs();
+        redisDelayQueue.addIfAbsent(TOPIC, orderId.toString(), deadline);
+    }
+}
@@ -13,10 +13,30 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_SHOP_BLOOM_KEY = "cache:bloom:shop";
+    public static final String CACHE_SHOP_BLOOM_CHANNEL = "cache:bloom:shop:add";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String CACHE_LOCK_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String SECKILL_RECONCILE_WATERMARK_KEY = "seckill:reconcile:watermark";
+    public static final String SECKILL_REGISTRY_CHANNEL = "seckill:registry:invalidate";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_SHARD_PARTITIONS_KEY = "seckill:shard:partitions";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders.";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_CONSUMER_INSTANCES_KEY = "seckill:consumer:instances";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String DELAY_QUEUE_KEY = "delay:queue:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
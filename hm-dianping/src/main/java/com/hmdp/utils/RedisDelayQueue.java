@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.DelayQueueProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.DELAY_QUEUE_KEY;
+
+/**
+ * 基于ZSET的延迟队列
+ * <p>
+ * 每个主题拆成多个分桶 delay:queue:{topic}:{n}，score是到期时间。每个实例定时从随机的桶开始，
+ * 用lua脚本原子地取出并删除一批到期元素(ZRANGEBYSCORE + ZREM)，多个实例同时拉取不会重复处理。
+ * 处理失败的元素延迟一段时间后重新放回。取出后实例宕机会丢失这一批，处理方需要能容忍或有对账兜底。
+ * </p>
+ */
+@Slf4j
+@Component
+public class RedisDelayQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private DelayQueueProperties delayQueueProperties;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> POP_SCRIPT;
+
+    static {
+        POP_SCRIPT = new DefaultRedisScript<>();
+        POP_SCRIPT.setLocation(new ClassPathResource("mapper/delay_queue_pop.lua"));
+        POP_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * 主题 -> 到期元素的处理器
+     */
+    private final Map<String, Consumer<String>> handlers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        long interval = delayQueueProperties.getPollIntervalMs();
+        pollExecutor.scheduleWithFixedDelay(this::pollAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        pollExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册一个主题的处理器，本实例开始拉取这个主题
+     */
+    public void register(String topic, Consumer<String> handler) {
+        handlers.put(topic, handler);
+    }
+
+    /**
+     * 添加元素，deadline(毫秒时间戳)到期后交给处理器，重复添加会更新到期时间
+     */
+    public void add(String topic, String member, long deadline) {
+        stringRedisTemplate.opsForZSet().add(bucketKey(topic, member), member, deadline);
+    }
+
+    /**
+     * 添加元素，已经在队列中时不更新到期时间(ZADD NX)
+     */
+    public void addIfAbsent(String topic, String member, long deadline) {
+        stringRedisTemplate.opsForZSet().addIfAbsent(bucketKey(topic, member), member, deadline);
+    }
+
+    /**
+     * 删除还没到期的元素
+     */
+    public void remove(String topic, String member) {
+        stringRedisTemplate.opsForZSet().remove(bucketKey(topic, member), member);
+    }
+
+    private String bucketKey(String topic, String member) {
+        int bucket = (member.hashCode() & Integer.MAX_VALUE) % delayQueueProperties.getBuckets();
+        return bucketKey(topic, bucket);
+    }
+
+    private String bucketKey(String topic, int bucket) {
+        return DELAY_QUEUE_KEY + topic + ":{" + bucket + "}";
+    }
+
+    private void pollAll() {
+        for (Map.Entry<String, Consumer<String>> entry : handlers.entrySet()) {
+            // 每个实例从随机的桶开始，减少多个实例同时抢同一个桶
+            int buckets = delayQueueProperties.getBuckets();
+            int start = ThreadLocalRandom.current().nextInt(buckets);
+            for (int i = 0; i < buckets; i++) {
+                try {
+                    poll(entry.getKey(), (start + i) % buckets, entry.getValue());
+                } catch (Exception e) {
+                    log.error("拉取延迟队列异常，topic={}", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void poll(String topic, int bucket, Consumer<String> handler) {
+        int batchSize = delayQueueProperties.getBatchSize();
+        String key = bucketKey(topic, bucket);
+        for (; ; ) {
+            // 1.原子地取出一批到期元素
+            List<?> items = stringRedisTemplate.execute(POP_SCRIPT, Collections.singletonList(key),
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize));
+            if (items == null || items.isEmpty()) {
+                return;
+            }
+            // 2.逐个处理，失败的延迟后放回
+            for (Object item : items) {
+                String member = item.toString();
+                try {
+                    handler.accept(member);
+                } catch (Exception e) {
+                    log.error("处理延迟队列元素失败，topic={}, member={}", topic, member, e);
+                    add(topic, member, System.currentTimeMillis() + delayQueueProperties.getRetryDelayMs());
+                }
+            }
+            // 3.不满一批说明这个桶已经没有到期元素了
+            if (items.size() < batchSize) {
+                return;
+            }
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package com.hmdp.utils;
 
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 
-
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -23,13 +32,79 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties,
+                         SnowflakeIdGenerator snowflakeIdGenerator) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
+        this.snowflakeIdGenerator = snowflakeIdGenerator;
     }
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private IdWorkerProperties idWorkerProperties;
+
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    /**
+     * 最近一次格式化的日期，同一天内不用重复format
+     */
+    private volatile DateKey dateKey = new DateKey(-1, null);
+
+    /**
+     * segment模式下每个业务前缀的号段
+     */
+    private final Map<String, SegmentBuffer> segments = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+    private static class DateKey {
+        private final long epochDay;
+        private final String date;
+
+        private DateKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 一段预留好的序列号 (max - step, max]，只能在预留它的那一天使用
+     */
+    private static class Segment {
+        private final String date;
+        private final AtomicLong next;
+        private final long start;
+        private final long max;
+
+        private Segment(String date, long start, long max) {
+            this.date = date;
+            this.next = new AtomicLong(start);
+            this.start = start;
+            this.max = max;
+        }
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        /**
+         * 预取好的下一个号段
+         */
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     public long nextId(String keyPrefix){
+        // 0.snowflake模式在本地生成，所有业务共用一个id空间
+        if ("snowflake".equals(idWorkerProperties.getMode())) {
+            return snowflakeIdGenerator.nextId();
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);//当前秒数
@@ -37,16 +112,89 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = dateOf(now);
 
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
+        // 2.2.自增长，segment模式从本地号段中取
+        long count = "segment".equals(idWorkerProperties.getMode())
+                ? nextFromSegment(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
 
     }
 
+    private String dateOf(LocalDateTime now) {
+        long epochDay = now.toLocalDate().toEpochDay();
+        DateKey key = dateKey;
+        if (key.epochDay != epochDay) {
+            key = new DateKey(epochDay, now.format(DATE_FORMATTER));
+            dateKey = key;
+        }
+        return key.date;
+    }
+
+    private long nextFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = segments.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        for (; ; ) {
+            Segment segment = buffer.current;
+            // 1.快路径：当天的号段还没用完，直接在本地取
+            if (segment != null && segment.date.equals(date)) {
+                long value = segment.next.getAndIncrement();
+                if (value <= segment.max) {
+                    // 1.1.用到阈值就异步预取下一个号段
+                    long step = idWorkerProperties.getSegmentStep();
+                    if (value - segment.start >= (long) (step * idWorkerProperties.getPrefetchThreshold())
+                            && buffer.next == null) {
+                        prefetch(buffer, keyPrefix, date);
+                    }
+                    return value;
+                }
+            }
+            // 2.慢路径：号段用完或者跨天了，切换到预取好的号段，没有就同步去Redis取
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    // 其它线程已经切换过了
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                if (next == null || !next.date.equals(date)) {
+                    // 跨天的号段不能用，否则会和新一天的序列号重复
+                    next = allocate(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String keyPrefix, String date) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        prefetchExecutor.submit(() -> {
+            try {
+                Segment segment = allocate(keyPrefix, date);
+                synchronized (buffer) {
+                    buffer.next = segment;
+                }
+            } catch (Exception e) {
+                log.error("预取id号段失败，keyPrefix={}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY icr{prefix}:{date} step，一次预留step个序列号
+     */
+    private Segment allocate(String keyPrefix, String date) {
+        long step = idWorkerProperties.getSegmentStep();
+        Long max = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date, step);
+        return new Segment(date, max - step + 1, max);
+    }
+
 
     /*
     public  static void main(String[] args){
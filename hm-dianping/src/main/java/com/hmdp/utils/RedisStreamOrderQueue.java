@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 基于Redis Stream的订单队列(默认)
+ * <p>
+ * 订单由lua脚本写入 stream.orders.{n}，每个实例 hmdp.seckill.order.workers 个消费线程
+ * 用XREADGROUP读取自己负责分区的消息，处理成功后XACK。失败的消息留在pending-list中，
+ * 由OrderStreamRecovery退避后认领重试。
+ * </p>
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.order", name = "queue", havingValue = "stream", matchIfMissing = true)
+public class RedisStreamOrderQueue implements OrderQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+    @Resource
+    private OrderStreamMonitor streamMonitor;
+
+    //异步处理线程池，每个实例 hmdp.seckill.order.workers 个消费线程
+    private ExecutorService seckillOrderExecutor;
+
+    @Override
+    public int streamPartitions() {
+        return seckillProperties.getOrder().getPartitions();
+    }
+
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        // lua脚本已经XADD过了
+    }
+
+    @Override
+    public void start(Handler handler) {
+        int workers = seckillProperties.getOrder().getWorkers();
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(handler, worker, workers));
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdownNow();
+        }
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+        private final Handler handler;
+        private final int worker;
+        private final int workers;
+        /**
+         * 集群内唯一的消费者名称：实例id-线程序号
+         */
+        private final String consumerName;
+
+        VoucherOrderHandler(Handler handler, int worker, int workers) {
+            this.handler = handler;
+            this.worker = worker;
+            this.workers = workers;
+            this.consumerName = partitionManager.consumerName(worker);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                // 每次循环重新获取分区，实例上下线后分区会重新分配
+                List<String> streams = partitionManager.streamsOf(worker, workers);
+                try {
+                    if (streams.isEmpty()) {
+                        // 当前线程没有分到分区(实例数多于分区数)，等下一次重新分配
+                        Thread.sleep(seckillProperties.getOrder().getHeartbeatIntervalMs());
+                        continue;
+                    }
+                    // 批量模式：一次读取多条消息，一次性落库
+                    if (seckillProperties.getOrder().getBatchSize() > 1) {
+                        handleBatch(handler, consumerName, streams);
+                        continue;
+                    }
+                    // 1.获取消息队列中的订单信息 尝试监听队列，使用阻塞模式，最大等待时长为2000ms
+                    //XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 s2 ... > > ...
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(seckillProperties.getOrder().getGroup(), consumerName),
+                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            //ReadOffset.lastConsumed()底层就是 '>'
+                            offsetsOf(streams, ReadOffset.lastConsumed())
+                    );
+                    // 2.判断消息是否获取成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1 如果获取失败，说明你没有消息，继续下一次循环。再读一次
+                        continue;
+                    }
+
+                    // 多个stream时每个stream各返回最多1条
+                    for (MapRecord<String, Object, Object> record : list) {
+                        //3. 解析消息中的订单消息
+                        Map<Object, Object> values = record.getValue();
+                        //消息获取成功之后，我们需要将其转为对象
+                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+
+                        //4. 如果获取成功，可以下单
+                        handler.handle(voucherOrder);
+                        //5. 确认消息 SACK stream.orders.{n} g1 id
+                        stringRedisTemplate.opsForStream()
+                                .acknowledge(record.getStream(), seckillProperties.getOrder().getGroup(), record.getId());
+                        streamMonitor.recordAck(1);
+                    }
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    // 没有确认的消息留在pending-list中，由OrderStreamRecovery退避后认领重试，这里不阻塞主循环
+                    log.error("处理订单异常", e);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private StreamOffset<String>[] offsetsOf(List<String> streams, ReadOffset readOffset) {
+        StreamOffset<String>[] offsets = new StreamOffset[streams.size()];
+        for (int i = 0; i < streams.size(); i++) {
+            offsets[i] = StreamOffset.create(streams.get(i), readOffset);
+        }
+        return offsets;
+    }
+
+    private void handleBatch(Handler handler, String consumerName, List<String> streams) {
+        String group = seckillProperties.getOrder().getGroup();
+        // 1.读取一批消息：XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS ... >
+        List<MapRecord<String, Object, Object>> records = readBatch(consumerName, streams);
+        if (records.isEmpty()) {
+            return;
+        }
+        // 2.解析为订单对象，消息id按stream分组，方便后面按stream确认
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        Map<String, List<RecordId>> recordIds = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        // 3.一个事务内：多行insert + 每张券一条扣库存的update
+        try {
+            handler.handleBatch(voucherOrders);
+        } catch (Exception e) {
+            // 整批回滚，退回逐条处理，有问题的那条留在pending-list里交给OrderStreamRecovery
+            log.error("批量创建订单失败，改为逐条处理，size={}", voucherOrders.size(), e);
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    handler.handle(voucherOrders.get(i));
+                    stringRedisTemplate.opsForStream().acknowledge(records.get(i).getStream(), group, records.get(i).getId());
+                    streamMonitor.recordAck(1);
+                } catch (Exception ex) {
+                    log.error("处理订单异常，id={}", records.get(i).getId(), ex);
+                }
+            }
+            return;
+        }
+        // 4.每个stream一次确认 XACK stream.orders.{n} g1 id1 id2 ...
+        for (Map.Entry<String, List<RecordId>> entry : recordIds.entrySet()) {
+            stringRedisTemplate.opsForStream()
+                    .acknowledge(entry.getKey(), group, entry.getValue().toArray(new RecordId[0]));
+            streamMonitor.recordAck(entry.getValue().size());
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> readBatch(String consumerName, List<String> streams) {
+        int batchSize = seckillProperties.getOrder().getBatchSize();
+        Consumer consumer = Consumer.from(seckillProperties.getOrder().getGroup(), consumerName);
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+        // 1.第一次阻塞读，最多等待2000ms
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                consumer,
+                StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                offsetsOf(streams, ReadOffset.lastConsumed())
+        );
+        if (list == null || list.isEmpty()) {
+            return batch;
+        }
+        batch.addAll(list);
+        // 2.没读满就在linger时间内继续读，凑满一批或者超时为止
+        long deadline = System.currentTimeMillis() + seckillProperties.getOrder().getMaxLingerMs();
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            // 注意BLOCK 0表示永久阻塞，这里remaining一定大于0
+            list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                    offsetsOf(streams, ReadOffset.lastConsumed())
+            );
+            if (list == null || list.isEmpty()) {
+                break;
+            }
+            batch.addAll(list);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内环形队列实现的订单队列，hmdp.seckill.order.queue=ring 时启用
+ * <p>
+ * lua脚本只扣库存、记录用户，不写stream，秒杀成功后由请求线程把订单放进OrderRingBuffer，
+ * 消费线程每次取走所有已发布的订单(最多batch-size条)批量落库，省掉一次Redis Stream的往返。
+ * 队列满时生产者自旋等待，不丢订单；关闭时先把队列里的订单处理完。
+ * 订单只在内存里，进程崩溃会丢失，只适合单节点部署和压测对比。
+ * </p>
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.order", name = "queue", havingValue = "ring")
+public class RingBufferOrderQueue implements OrderQueue {
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private OrderRingBuffer ringBuffer;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    private void init() {
+        if (seckillProperties.getShard().isEnabled()) {
+            throw new IllegalStateException("本地订单队列只支持单节点部署，不能和分片库存一起开启");
+        }
+        ringBuffer = new OrderRingBuffer(seckillProperties.getOrder().getRingBufferSize());
+    }
+
+    @Override
+    public int streamPartitions() {
+        return 0;
+    }
+
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        // 队列满了就等消费者腾出位置，Redis中的库存已经扣了，订单不能丢
+        while (!ringBuffer.offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId())) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("订单入队被中断，orderId=" + voucherOrder.getId());
+            }
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    @Override
+    public void start(Handler handler) {
+        int workers = seckillProperties.getOrder().getWorkers();
+        running = true;
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            seckillOrderExecutor.submit(() -> consume(handler));
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (seckillOrderExecutor == null) {
+            return;
+        }
+        // 不再等新订单，消费线程把队列里剩下的处理完再退出
+        running = false;
+        seckillOrderExecutor.shutdown();
+        try {
+            if (!seckillOrderExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.error("关闭时本地订单队列中还有订单未处理，size={}", ringBuffer.size());
+                seckillOrderExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume(Handler handler) {
+        int batchSize = Math.max(1, seckillProperties.getOrder().getBatchSize());
+        List<VoucherOrder> batch = new ArrayList<>(batchSize);
+        int idle = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            // 1.取走所有已发布的订单，最多一批
+            batch.clear();
+            if (ringBuffer.drainTo(batch, batchSize) == 0) {
+                if (!running) {
+                    return;
+                }
+                // 2.没有订单时先自旋，再让出CPU，最后短暂休眠
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            handle(handler, batch);
+        }
+    }
+
+    private int idle(int idle) {
+        if (idle < 100) {
+            return idle + 1;
+        }
+        if (idle < 200) {
+            Thread.yield();
+            return idle + 1;
+        }
+        LockSupport.parkNanos(100_000);
+        return idle;
+    }
+
+    private void handle(Handler handler, List<VoucherOrder> batch) {
+        if (batch.size() > 1) {
+            try {
+                handler.handleBatch(batch);
+                return;
+            } catch (Exception e) {
+                // 整批回滚，退回逐条处理
+                log.error("批量创建订单失败，改为逐条处理，size={}", batch.size(), e);
+            }
+        }
+        for (VoucherOrder voucherOrder : batch) {
+            try {
+                handler.handle(voucherOrder);
+            } catch (Exception e) {
+                // 本地队列没有pending-list，记录完整订单信息以便人工补单
+                log.error("处理订单异常，id={}, userId={}, voucherId={}",
+                        voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId(), e);
+            }
+        }
+    }
+}
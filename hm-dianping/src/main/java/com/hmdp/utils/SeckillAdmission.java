@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.HMac;
+import cn.hutool.crypto.digest.HmacAlgorithm;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀接口的准入控制
+ * <p>
+ * 每张券一个自适应并发上限(AIMD)：秒杀调用耗时不超过目标值时上限缓慢增加，超过时按比例下降。
+ * 超过上限的请求不进入下单流程，直接拿到一个短期有效的排队令牌和建议的重试时间，
+ * 不会占满Tomcat线程拖慢店铺、博客、登录等其它接口。
+ * 并发上限中预留一部分只给持有排队令牌的用户，重试的用户优先于新来的用户。
+ * 令牌是 voucherId.userId.notBefore.expireAt.HMAC签名，多个实例需要配置相同的secret。
+ * 准入在校验券是否存在之前，每张券的上限放在有容量上限、空闲过期的Caffeine缓存里，随机的券id刷不满内存。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * HMac内部只有一个Mac，不能多线程共用，每个线程一个
+     */
+    private ThreadLocal<HMac> hmac;
+
+    private Cache<Long, Limiter> limiters;
+
+    private static class Limiter {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double limit;
+
+        private Limiter(double limit) {
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * 准入凭证，处理完成后必须release
+     */
+    public static class Permit {
+        private final Limiter limiter;
+        private final long startNanos = System.nanoTime();
+
+        private Permit(Limiter limiter) {
+            this.limiter = limiter;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        String secret = seckillProperties.getAdmission().getTokenSecret();
+        byte[] key;
+        if (StrUtil.isBlank(secret)) {
+            // 没有配置时每个实例随机生成，令牌只能在签发它的实例上使用
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            if (seckillProperties.getAdmission().isEnabled()) {
+                log.warn("未配置 hmdp.seckill.admission.token-secret，排队令牌只在本实例有效");
+            }
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        hmac = ThreadLocal.withInitial(() -> new HMac(HmacAlgorithm.HmacSHA256, key));
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        limiters = Caffeine.newBuilder()
+                .maximumSize(config.getLimiterMaxSize())
+                .expireAfterAccess(config.getLimiterIdleMs(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getAdmission().isEnabled();
+    }
+
+    /**
+     * 尝试进入秒杀流程
+     *
+     * @param token 上次被拒绝时拿到的排队令牌，可以为null
+     * @return null表示超过并发上限
+     */
+    public Permit tryAcquire(Long voucherId, Long userId, String token) {
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        Limiter limiter = limiters.get(voucherId, k -> new Limiter(config.getInitialLimit()));
+        // 1.持有有效令牌的用户可以用满上限，其它用户只能用到预留部分之前
+        double limit = limiter.limit;
+        if (!verifyToken(token, voucherId, userId)) {
+            limit = limit * (1 - config.getReservedRatio());
+        }
+        // 2.占一个并发名额
+        for (; ; ) {
+            int current = limiter.inFlight.get();
+            if (current >= Math.max(1, (int) limit)) {
+                return null;
+            }
+            if (limiter.inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(limiter);
+            }
+        }
+    }
+
+    /**
+     * 释放并发名额，按这次调用的耗时调整上限
+     */
+    public void release(Permit permit) {
+        Limiter limiter = permit.limiter;
+        int inFlight = limiter.inFlight.getAndDecrement();
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - permit.startNanos);
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        synchronized (limiter) {
+            double limit = limiter.limit;
+            if (latencyMs > config.getTargetLatencyMs()) {
+                // 1.耗时超过目标，乘性减小
+                limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+            } else if (inFlight * 2 >= limit) {
+                // 2.耗时正常且并发确实用到了一半以上，加性增大，每满一轮大约+1
+                limit = Math.min(config.getMaxLimit(), limit + 1.0 / limit);
+            }
+            limiter.limit = limit;
+        }
+    }
+
+    /**
+     * 给被拒绝的用户签发排队令牌，retry-after之后才能使用
+     */
+    public String issueToken(Long voucherId, Long userId) {
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        long now = System.currentTimeMillis();
+        String payload = voucherId + "." + userId + "." + (now + config.getRetryAfterMs()) + "." + (now + config.getTokenTtlMs());
+        return payload + "." + hmac.get().digestHex(payload);
+    }
+
+    private boolean verifyToken(String token, Long voucherId, Long userId) {
+        if (StrUtil.isBlank(token)) {
+            return false;
+        }
+        int index = token.lastIndexOf('.');
+        if (index < 0) {
+            return false;
+        }
+        String payload = token.substring(0, index);
+        String signature = token.substring(index + 1);
+        // 1.校验签名，防止伪造
+        if (!MessageDigest.isEqual(hmac.get().digestHex(payload).getBytes(StandardCharsets.UTF_8),
+                signature.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        // 2.校验券、用户和有效期
+        String[] parts = payload.split("\\.");
+        if (parts.length != 4 || !parts[0].equals(voucherId.toString()) || !parts[1].equals(userId.toString())) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        return now >= Long.parseLong(parts[2]) && now <= Long.parseLong(parts[3]);
+    }
+
+    /**
+     * 建议客户端多久之后重试(毫秒)
+     */
+    public long retryAfterMs() {
+        return seckillProperties.getAdmission().getRetryAfterMs();
+    }
+}
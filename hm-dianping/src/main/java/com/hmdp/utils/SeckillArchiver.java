@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀结束后清理每张券在Redis中的key
+ * <p>
+ * 创建秒杀券时按 endTime + delay-ms 放进延迟队列(主题 seckill:archive)，到期后先用SSCAN分批
+ * 把已购用户导出到本地gzip文件，再给库存、一人一单、租约这些key设置过期时间。
+ * seckill:voucher:{id} 只有几个字段，保留下来让lua脚本继续返回"已结束"。
+ * delay-ms要大于支付超时，保证超时取消的订单已经把库存还回Redis。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillArchiver {
+
+    private static final String TOPIC = "seckill:archive";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private RedisDelayQueue redisDelayQueue;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards stockShards;
+
+    private final ExecutorService backfillExecutor = Executors.newSingleThreadExecutor();
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Archive config = seckillProperties.getArchive();
+        if (!config.isEnabled()) {
+            return;
+        }
+        redisDelayQueue.register(TOPIC, member -> archive(Long.valueOf(member)));
+        // 上线之前已经结束的券也排进延迟队列
+        if (config.isBackfillOnStartup()) {
+            backfillExecutor.submit(this::backfill);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        backfillExecutor.shutdownNow();
+    }
+
+    /**
+     * 创建秒杀券后调用，秒杀结束delay-ms之后清理
+     */
+    public void schedule(SeckillVoucher voucher) {
+        if (!seckillProperties.getArchive().isEnabled()) {
+            return;
+        }
+        long endAt = voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        redisDelayQueue.add(TOPIC, voucher.getVoucherId().toString(),
+                endAt + seckillProperties.getArchive().getDelayMs());
+    }
+
+    private void backfill() {
+        int pageSize = 500;
+        long from = 0;
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            for (; ; ) {
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .gt("voucher_id", from)
+                        .lt("end_time", now)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + pageSize)
+                        .list();
+                for (SeckillVoucher voucher : vouchers) {
+                    // 已经清理过的券没有库存key了，不用再排队
+                    if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKeyOf(voucher.getVoucherId())))) {
+                        schedule(voucher);
+                    }
+                }
+                if (vouchers.size() < pageSize) {
+                    return;
+                }
+                from = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+        } catch (Exception e) {
+            log.error("补充秒杀券清理任务异常", e);
+        }
+    }
+
+    private String stockKeyOf(Long voucherId) {
+        return stockShards.isEnabled() ? stockShards.stockKey(voucherId, 0) : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    /**
+     * 导出已购用户，再让这张券的key过期。失败时抛出异常，延迟队列稍后重试
+     */
+    private void archive(Long voucherId) {
+        // 1.这张券所有的一人一单key，分片库存模式下每个分区一个
+        List<String> orderKeys = new ArrayList<>();
+        if (stockShards.isEnabled()) {
+            for (int p = 0; p < seckillProperties.getOrder().getPartitions(); p++) {
+                orderKeys.add(SECKILL_ORDER_KEY + "{" + p + "}:" + voucherId);
+            }
+        } else {
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+        }
+        // 2.快照已购用户
+        long buyers = snapshot(voucherId, orderKeys);
+        // 3.设置过期，大key的删除交给Redis后台(建议开启 lazyfree-lazy-expire)
+        List<String> keys = new ArrayList<>();
+        if (stockShards.isEnabled()) {
+            for (int s = 0; s < seckillProperties.getShard().getStockShards(); s++) {
+                keys.add(stockShards.stockKey(voucherId, s));
+            }
+        } else {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        }
+        keys.add(SECKILL_LEASE_KEY + voucherId);
+        for (String orderKey : orderKeys) {
+            keys.add(orderKey);
+            keys.add(orderKey + ":bitmap");
+            String bloom = orderKey + ":bloom";
+            Object layers = stringRedisTemplate.opsForHash().get(bloom, "layers");
+            for (int i = 0; layers != null && i < Integer.parseInt(layers.toString()); i++) {
+                keys.add(bloom + ":" + i);
+            }
+            keys.add(bloom);
+        }
+        long ttl = seckillProperties.getArchive().getRetainMs();
+        for (String key : keys) {
+            if (ttl > 0) {
+                stringRedisTemplate.expire(key, Duration.ofMillis(ttl));
+            } else {
+                stringRedisTemplate.unlink(key);
+            }
+        }
+        log.info("秒杀券已归档，voucherId={}, 已购用户={}", voucherId, buyers);
+    }
+
+    /**
+     * 把已购用户写入 {dir}/buyers-{voucherId}.txt.gz，每行一个userId
+     *
+     * @return 导出的用户数，布隆过滤器无法导出，返回-1
+     */
+    private long snapshot(Long voucherId, List<String> orderKeys) {
+        String mode = seckillProperties.getDedupe().getMode();
+        if ("bloom".equals(mode)) {
+            // 订单以数据库为准，这里只是少了一份Redis快照
+            log.warn("布隆过滤器无法导出已购用户，跳过快照，voucherId={}", voucherId);
+            return -1;
+        }
+        Path dir = Paths.get(seckillProperties.getArchive().getDir());
+        Path file = dir.resolve("buyers-" + voucherId + ".txt.gz");
+        Path tmp = dir.resolve("buyers-" + voucherId + ".txt.gz.tmp");
+        long count = 0;
+        try {
+            Files.createDirectories(dir);
+            // 先写临时文件，写完再改名，重试时不会留下半个文件
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8))) {
+                for (String orderKey : orderKeys) {
+                    count += "bitmap".equals(mode) ? writeBitmap(orderKey + ":bitmap", writer) : writeSet(orderKey, writer);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("导出已购用户失败，voucherId=" + voucherId, e);
+        }
+        return count;
+    }
+
+    private long writeSet(String key, BufferedWriter writer) throws IOException {
+        long count = 0;
+        // SSCAN key cursor COUNT n，每次只取一小批，不会像SMEMBERS一样阻塞Redis
+        ScanOptions options = ScanOptions.scanOptions().count(seckillProperties.getArchive().getScanCount()).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+            while (cursor.hasNext()) {
+                writer.write(cursor.next());
+                writer.newLine();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long writeBitmap(String key, BufferedWriter writer) throws IOException {
+        long count = 0;
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        int chunk = seckillProperties.getArchive().getScanCount();
+        // GETRANGE按块读取，第offset个字节的第j位(高位在前)对应userId = offset * 8 + j
+        for (long offset = 0; ; offset += chunk) {
+            long start = offset;
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().getRange(rawKey, start, start + chunk - 1));
+            if (bytes == null || bytes.length == 0) {
+                return count;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                for (int j = 0; j < 8; j++) {
+                    if ((bytes[i] & (0x80 >>> j)) != 0) {
+                        writer.write(String.valueOf((start + i) * 8 + j));
+                        writer.newLine();
+                        count++;
+                    }
+                }
+            }
+            if (bytes.length < chunk) {
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 秒杀请求合并
+ * <p>
+ * 同一张券在一个很短的窗口内到达的请求合并成一批，用一次 seckill_batch.lua 调用处理，
+ * 脚本按顺序返回每个用户的结果。每批第一个到达的请求是leader，等待窗口结束后执行脚本；
+ * 批次提前凑满时由凑满的那个请求直接执行。其它请求只等待自己的结果。
+ * Redis的QPS和连接池的争用都降到原来的 1/批次大小。
+ * 等待结果最多 wait-timeout-ms，超时返回 TIMEOUT，不会因为执行脚本的线程出错一直挂着。
+ * </p>
+ */
+@Component
+public class SeckillCoalescer {
+
+    /**
+     * 等待批次结果超时，脚本可能已经执行，也可能没有
+     */
+    public static final int TIMEOUT = 5;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillDedupe seckillDedupe;
+    @Resource
+    private OrderQueue orderQueue;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+
+    static {
+        SECKILL_BATCH_SCRIPT = SeckillDedupe.script("mapper/seckill_batch.lua", List.class);
+    }
+
+    /**
+     * 每张券当前正在收集请求的批次
+     */
+    private final Map<Long, Batch> openBatches = new ConcurrentHashMap<>();
+
+    private static class Request {
+        private final Long userId;
+        private final long orderId;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private Request(Long userId, long orderId) {
+            this.userId = userId;
+            this.orderId = orderId;
+        }
+    }
+
+    private static class Batch {
+        private final List<Request> requests = new ArrayList<>();
+        private boolean closed;
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getCoalesce().isEnabled();
+    }
+
+    /**
+     * 合并执行秒杀脚本，返回值和seckill.lua一致：0成功，1库存不足，2重复下单；等待超时返回TIMEOUT
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        SeckillProperties.Coalesce config = seckillProperties.getCoalesce();
+        Request request = new Request(userId, orderId);
+        // 1.加入当前批次，批次已经关闭就换一个新的
+        Batch batch;
+        boolean leader;
+        boolean full;
+        for (; ; ) {
+            batch = openBatches.computeIfAbsent(voucherId, k -> new Batch());
+            synchronized (batch) {
+                if (batch.closed) {
+                    continue;
+                }
+                batch.requests.add(request);
+                leader = batch.requests.size() == 1;
+                full = batch.requests.size() >= config.getMaxBatch();
+                if (full) {
+                    close(voucherId, batch);
+                }
+            }
+            break;
+        }
+        // 2.批次凑满了，由凑满的请求直接执行
+        if (full) {
+            flush(voucherId, batch);
+        } else if (leader) {
+            // 3.leader等窗口结束，期间批次可能已经被凑满的请求执行了
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(config.getWindowMicros()));
+            boolean closedByMe;
+            synchronized (batch) {
+                closedByMe = !batch.closed;
+                if (closedByMe) {
+                    close(voucherId, batch);
+                }
+            }
+            if (closedByMe) {
+                flush(voucherId, batch);
+            }
+        }
+        // 4.等待自己的结果
+        try {
+            return request.result.get(config.getWaitTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("合并秒杀请求失败，voucherId=" + voucherId, cause);
+        } catch (TimeoutException e) {
+            return TIMEOUT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TIMEOUT;
+        }
+    }
+
+    private void close(Long voucherId, Batch batch) {
+        batch.closed = true;
+        openBatches.remove(voucherId, batch);
+    }
+
+    private void flush(Long voucherId, Batch batch) {
+        List<Request> requests = batch.requests;
+        try {
+            // 1.参数：voucherId, 分区数, 去重参数, 然后是 userId, orderId 对
+            Object[] head = seckillDedupe.withArgs(
+                    voucherId.toString(), String.valueOf(orderQueue.streamPartitions()));
+            Object[] args = Arrays.copyOf(head, head.length + requests.size() * 2);
+            for (int i = 0; i < requests.size(); i++) {
+                args[head.length + i * 2] = requests.get(i).userId.toString();
+                args[head.length + i * 2 + 1] = String.valueOf(requests.get(i).orderId);
+            }
+            List<?> results = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), args);
+            // 2.按顺序把结果分给每个请求
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).result.complete(((Number) results.get(i)).intValue());
+            }
+        } catch (Throwable e) {
+            // Error也要通知整批请求，否则它们都要等到超时
+            for (Request request : requests) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 一人一单的去重方式
+ * <p>
+ * set：原有方式，userId存在 seckill:order:{id} 集合中，参与人数多时每张券要占几十MB；
+ * bitmap：seckill:order:{id}:bitmap，以userId为偏移量，用户id连续自增时每个用户1bit；
+ * bloom：可扩容布隆过滤器 seckill:order:{id}:bloom，内存只和参与人数、误判率有关，
+ * 少量没买过的用户会被误判成重复下单。
+ * 去重逻辑在 seckill_dedupe.lua 中，加载秒杀脚本时拼接在脚本前面。
+ * </p>
+ */
+@Component
+public class SeckillDedupe {
+
+    private static final String DEDUPE_SCRIPT_LOCATION = "mapper/seckill_dedupe.lua";
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 加载一个用到 dedupe.exists / dedupe.add 的秒杀脚本
+     */
+    public static DefaultRedisScript<Long> script(String location) {
+        return script(location, Long.class);
+    }
+
+    public static <T> DefaultRedisScript<T> script(String location, Class<T> resultType) {
+        return wrap(read(location), resultType);
+    }
+
+    /**
+     * 在脚本前拼接去重逻辑
+     */
+    public static DefaultRedisScript<Long> wrap(String body) {
+        return wrap(body, Long.class);
+    }
+
+    public static <T> DefaultRedisScript<T> wrap(String body, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptText(read(DEDUPE_SCRIPT_LOCATION) + body);
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private static String read(String location) {
+        try {
+            return StreamUtils.copyToString(new ClassPathResource(location).getInputStream(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("加载lua脚本失败：" + location, e);
+        }
+    }
+
+    /**
+     * 在脚本参数后面追加去重方式和布隆过滤器参数，对应脚本中的 dedupe.setup
+     */
+    public Object[] withArgs(Object... args) {
+        SeckillProperties.Dedupe dedupe = seckillProperties.getDedupe();
+        Object[] result = Arrays.copyOf(args, args.length + 3);
+        result[args.length] = dedupe.getMode();
+        result[args.length + 1] = String.valueOf(dedupe.getBloomCapacity());
+        result[args.length + 2] = String.valueOf(dedupe.getBloomErrorRate());
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_REGISTRY_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀券的本地登记表
+ * <p>
+ * 在JVM内记录每张券的秒杀时间和是否已售罄，未开始、已结束、已售罄的请求直接在本地拒绝，
+ * 不用再执行一次lua脚本。售罄标记来自seckill.lua的返回值，秒杀时间从 seckill:voucher:{id} 中加载，
+ * 没有缓存的券才查一次数据库；不存在的券id记在一个有容量上限、写入后过期的Caffeine缓存里。
+ * 库存补充时通过Redis发布订阅通知所有实例清掉对应的记录。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillLocalRegistry implements MessageListener {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 存在的秒杀券
+     */
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * 不存在的券id，防止被随机id刷满内存，也不用每次都查数据库
+     */
+    private Cache<Long, Boolean> missing;
+
+    private static class Entry {
+        private final LocalDateTime beginTime;
+        private final LocalDateTime endTime;
+        /**
+         * 这个时间之前认为已售罄
+         */
+        private volatile long soldOutUntil;
+
+        private Entry(LocalDateTime beginTime, LocalDateTime endTime) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Registry config = seckillProperties.getRegistry();
+        missing = Caffeine.newBuilder()
+                .maximumSize(config.getMissingMaxSize())
+                .expireAfterWrite(config.getMissingTtlMs(), TimeUnit.MILLISECONDS)
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_REGISTRY_CHANNEL));
+    }
+
+    /**
+     * 本地判断能否参与秒杀
+     *
+     * @return null表示可以继续，否则为拒绝的原因
+     */
+    public String check(Long voucherId) {
+        Entry entry = entries.get(voucherId);
+        if (entry == null) {
+            if (missing.getIfPresent(voucherId) != null) {
+                return "秒杀券不存在！";
+            }
+            entry = load(voucherId);
+            if (entry == null) {
+                missing.put(voucherId, Boolean.TRUE);
+                return "秒杀券不存在！";
+            }
+        }
+        // 1.判断秒杀是否开始
+        LocalDateTime now = LocalDateTime.now();
+        if (entry.beginTime.isAfter(now)) {
+            return "秒杀尚未开始！";
+        }
+        // 2.判断秒杀是否已经结束
+        if (entry.endTime.isBefore(now)) {
+            return "秒杀已经结束！";
+        }
+        // 3.判断是否已售罄
+        if (entry.soldOutUntil > System.currentTimeMillis()) {
+            return "库存不足";
+        }
+        return null;
+    }
+
+    /**
+     * seckill.lua返回库存不足后登记，之后的请求在本地拒绝。
+     * 带一个有效期兜底，没有收到补库存通知(比如租约归还)也能自己恢复
+     */
+    public void markSoldOut(Long voucherId) {
+        Entry entry = entries.get(voucherId);
+        if (entry != null) {
+            entry.soldOutUntil = System.currentTimeMillis() + seckillProperties.getRegistry().getSoldOutTtlMs();
+        }
+    }
+
+    /**
+     * seckill.lua判断不在秒杀时间内(秒杀时间被修改过)，清掉本地记录，下次重新加载
+     */
+    public void evict(Long voucherId) {
+        entries.remove(voucherId);
+    }
+
+    /**
+     * 库存有变化(补库存、取消订单退库存等)时调用，通知所有实例清掉这张券的本地记录
+     */
+    public void publishInvalidate(Long voucherId) {
+        stringRedisTemplate.convertAndSend(SECKILL_REGISTRY_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body);
+            entries.remove(voucherId);
+            missing.invalidate(voucherId);
+        } catch (NumberFormatException e) {
+            log.error("无效的秒杀券失效通知：{}", body);
+        }
+    }
+
+    /**
+     * @return 不存在的券返回null
+     */
+    private Entry load(Long voucherId) {
+        // 1.先从Redis中的秒杀券元数据加载
+        List<Object> window = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("begin", "end"));
+        Entry entry;
+        if (window.get(0) != null && window.get(1) != null) {
+            entry = new Entry(toTime(window.get(0)), toTime(window.get(1)));
+        } else {
+            // 2.没有缓存的券查数据库
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null) {
+                return null;
+            }
+            entry = new Entry(voucher.getBeginTime(), voucher.getEndTime());
+        }
+        Entry previous = entries.putIfAbsent(voucherId, entry);
+        return previous == null ? entry : previous;
+    }
+
+    private static LocalDateTime toTime(Object millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(millis.toString())), ZoneId.systemDefault());
+    }
+}
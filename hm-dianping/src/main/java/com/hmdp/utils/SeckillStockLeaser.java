@@ -0,0 +1,269 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 热点秒杀券的本地库存租约
+ * <p>
+ * 每个实例一次从 seckill:stock:{id} 租走一批库存，在本地用CAS扣减，本地卖完才再去Redis租，
+ * 库存key只在租约和归还时被访问。租约到期或实例关闭时把没卖完的库存还回去；
+ * 每个实例名下剩余的租约记在 seckill:lease:{id} 中，实例宕机后由其它实例回收。
+ * 秒杀结束后整个本地租约(包括已购用户)一起丢掉。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillStockLeaser {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("mapper/seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("mapper/seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService expireExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private static class Lease {
+        /**
+         * 本地还能卖的库存
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+        /**
+         * 本节点已经卖给过的用户，重复请求不用再去Redis
+         */
+        private final Set<Long> buyers = ConcurrentHashMap.newKeySet();
+        /**
+         * 秒杀结束时间，之后整个租约从本地移除
+         */
+        private final long endAt;
+        private volatile long expireAt;
+        /**
+         * Redis中也没有库存了，这个时间之前不再去租
+         */
+        private volatile long retryAt;
+
+        private Lease(long endAt) {
+            this.endAt = endAt;
+        }
+
+        private boolean tryTake() {
+            // 无锁扣减，不会扣成负数
+            for (; ; ) {
+                int current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!seckillProperties.getLease().isEnabled()) {
+            return;
+        }
+        expireExecutor.scheduleWithFixedDelay(this::expireLeases, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        expireExecutor.shutdownNow();
+        // 关闭前把所有没卖完的库存还回去
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            returnStock(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 这张券是否走租约模式
+     */
+    public boolean isLeased(Long voucherId) {
+        SeckillProperties.Lease lease = seckillProperties.getLease();
+        return lease.isEnabled() && lease.getVoucherIds().contains(voucherId);
+    }
+
+    /**
+     * 从本地租约中扣一个库存，本地卖完了才去Redis续租
+     *
+     * @return true表示扣减成功，false表示库存不足
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease(loadEndAt(voucherId)));
+        // 1.快路径：本地CAS扣减
+        if (lease.tryTake()) {
+            return true;
+        }
+        // 2.慢路径：本地卖完了，同一张券只有一个线程去Redis续租
+        synchronized (lease) {
+            if (lease.tryTake()) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < lease.retryAt) {
+                return false;
+            }
+            SeckillProperties.Lease config = seckillProperties.getLease();
+            Long leased = stringRedisTemplate.execute(
+                    LEASE_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), partitionManager.getInstanceId(), String.valueOf(config.getSize())
+            );
+            int n = leased == null ? 0 : leased.intValue();
+            if (n <= 0) {
+                // Redis中也卖完了，一段时间内直接在本地拒绝
+                lease.retryAt = now + config.getSoldOutRecheckMs();
+                return false;
+            }
+            // 自己先拿走一个，剩下的放进本地
+            lease.expireAt = now + config.getTtlMs();
+            lease.remaining.addAndGet(n - 1);
+            return true;
+        }
+    }
+
+    /**
+     * 扣了库存但没有下单成功(重复下单)，把库存还回本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * 本实例的租约已经被回收，本地剩余库存作废，下次请求重新去Redis租
+     */
+    public void invalidate(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.set(0);
+            lease.retryAt = 0;
+        }
+    }
+
+    /**
+     * 本节点是否已经卖给过该用户
+     */
+    public boolean isKnownBuyer(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && lease.buyers.contains(userId);
+    }
+
+    public void markBuyer(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.buyers.add(userId);
+        }
+    }
+
+    private void expireLeases() {
+        long now = System.currentTimeMillis();
+        // 1.到期的租约，把没卖完的库存还回去
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.expireAt <= now && lease.remaining.get() > 0) {
+                try {
+                    returnStock(entry.getKey(), lease);
+                } catch (Exception e) {
+                    log.error("归还库存租约失败，voucherId={}", entry.getKey(), e);
+                }
+            }
+        }
+        // 2.已经结束的券，剩余库存还回去后移除本地租约，已购用户一起释放
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            if (entry.getValue().endAt <= now) {
+                try {
+                    returnStock(entry.getKey(), entry.getValue());
+                    leases.remove(entry.getKey(), entry.getValue());
+                } catch (Exception e) {
+                    log.error("移除已结束的库存租约失败，voucherId={}", entry.getKey(), e);
+                }
+            }
+        }
+        // 3.回收已下线实例名下的租约
+        for (Long voucherId : seckillProperties.getLease().getVoucherIds()) {
+            try {
+                reclaimDeadLeases(voucherId);
+            } catch (Exception e) {
+                log.error("回收下线实例的库存租约失败，voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    private void returnStock(Long voucherId, Lease lease) {
+        int n = lease.remaining.getAndSet(0);
+        if (n <= 0) {
+            return;
+        }
+        stringRedisTemplate.execute(
+                RETURN_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), partitionManager.getInstanceId(), String.valueOf(n)
+        );
+        // 归还后允许立即重新租
+        lease.retryAt = 0;
+    }
+
+    /**
+     * 秒杀结束时间，从 seckill:voucher:{id} 中读取，没有加载过的券不过期
+     */
+    private long loadEndAt(Long voucherId) {
+        Object end = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "end");
+        return end == null ? Long.MAX_VALUE : Long.parseLong(end.toString());
+    }
+
+    private void reclaimDeadLeases(Long voucherId) {
+        Map<Object, Object> outstanding = stringRedisTemplate.opsForHash().entries(SECKILL_LEASE_KEY + voucherId);
+        for (Map.Entry<Object, Object> entry : outstanding.entrySet()) {
+            String instanceId = entry.getKey().toString();
+            if (instanceId.equals(partitionManager.getInstanceId()) || partitionManager.isAlive(instanceId)) {
+                continue;
+            }
+            Long returned = stringRedisTemplate.execute(
+                    RETURN_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), instanceId, entry.getValue().toString()
+            );
+            log.info("回收已下线实例的库存租约，voucherId={}, instanceId={}, 库存={}", voucherId, instanceId, returned);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.service.ISeckillVoucherService;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_PARTITIONS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Redis Cluster下的分片库存
+ * <p>
+ * 一张券的库存拆成K个分片 seckill:stock:{voucherId:s}，每个分片带自己的hash tag，
+ * 会分散到不同的slot和节点上。扣库存时随机选一个分片，扣不到再依次尝试其它分片。
+ * 一人一单的key seckill:order:{n}:voucherId 和订单stream stream.orders.{n} 用同一个
+ * hash tag(n = userId % 分区数)，下单脚本只访问同一个slot中的key。
+ * 分区数变了用户会换到另一个空的一人一单key，可以再买一次并多扣一个库存，
+ * 所以分区数记在 seckill:shard:partitions 中，还有没结束的秒杀券时修改分区数，实例拒绝启动。
+ * </p>
+ */
+@Component
+public class SeckillStockShards {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private StreamPartitionManager partitionManager;
+    @Resource
+    private SeckillDedupe seckillDedupe;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> ORDER_SCRIPT;
+
+    static {
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("mapper/seckill_shard_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        ORDER_SCRIPT = SeckillDedupe.script("mapper/seckill_shard_order.lua");
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        // 1.第一次启动，记下分区数
+        String partitions = String.valueOf(seckillProperties.getOrder().getPartitions());
+        String recorded = stringRedisTemplate.opsForValue().get(SECKILL_SHARD_PARTITIONS_KEY);
+        if (recorded == null || recorded.equals(partitions)) {
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_SHARD_PARTITIONS_KEY, partitions);
+            return;
+        }
+        // 2.分区数变了，只有所有秒杀券都结束后才允许
+        Integer active = seckillVoucherService.query().gt("end_time", LocalDateTime.now()).count();
+        if (active != null && active > 0) {
+            throw new IllegalStateException("还有" + active + "张秒杀券没有结束，不能把 hmdp.seckill.order.partitions 从"
+                    + recorded + "改成" + partitions + "，否则一人一单会失效");
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARD_PARTITIONS_KEY, partitions);
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getShard().isEnabled();
+    }
+
+    /**
+     * 库存分片的key：seckill:stock:{voucherId:s}
+     */
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把库存平均拆到各个分片，除不尽的部分从第0个分片开始每个多放1个
+     */
+    public void split(Long voucherId, int stock) {
+        int shards = seckillProperties.getShard().getStockShards();
+        for (int s = 0; s < shards; s++) {
+            int n = stock / shards + (s < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, s), String.valueOf(n));
+        }
+    }
+
+    /**
+     * 扣一个库存：从随机分片开始，扣不到就依次尝试下一个分片
+     *
+     * @return 扣减成功的分片序号，-1表示所有分片都没有库存
+     */
+    public int tryTake(Long voucherId) {
+        int shards = seckillProperties.getShard().getStockShards();
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (start + i) % shards;
+            Long taken = stringRedisTemplate.execute(
+                    TAKE_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)));
+            if (taken != null && taken == 1L) {
+                return shard;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 扣了库存但没有下单成功(重复下单)，把库存还回原来的分片
+     */
+    public void giveBack(Long voucherId, int shard) {
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+    }
+
+    /**
+     * 退还一个库存(取消订单)，放回随机的分片
+     */
+    public void returnStock(Long voucherId) {
+        int shards = seckillProperties.getShard().getStockShards();
+        giveBack(voucherId, ThreadLocalRandom.current().nextInt(shards));
+    }
+
+    /**
+     * 一人一单校验 + 发消息
+     *
+     * @return 0表示下单成功，2表示重复下单
+     */
+    public int order(Long voucherId, Long userId, long orderId) {
+        int partition = (int) (userId % seckillProperties.getOrder().getPartitions());
+        List<String> keys = Arrays.asList(
+                SECKILL_ORDER_KEY + "{" + partition + "}:" + voucherId,
+                partitionManager.streamKey(partition)
+        );
+        Long result = stringRedisTemplate.execute(
+                ORDER_SCRIPT, keys,
+                seckillDedupe.withArgs(voucherId.toString(), userId.toString(), String.valueOf(orderId))
+        );
+        return result == null ? 2 : result.intValue();
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀券元数据缓存
+ * <p>
+ * 把秒杀券的开始/结束时间(毫秒时间戳)写入 seckill:voucher:{id} 哈希，库存只在 seckill:stock:{id} 中，
+ * seckill.lua用Redis的TIME判断是否在秒杀时间内，热路径上只有一次脚本调用，不查数据库。
+ * 新建秒杀券时写入，启动时预加载所有还没结束的秒杀券。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillVoucherLoader {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @PostConstruct
+    private void preload() {
+        // 1.查询所有还没结束的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        // 2.逐个写入Redis
+        for (SeckillVoucher voucher : vouchers) {
+            cache(voucher);
+        }
+        log.info("预加载秒杀券{}张", vouchers.size());
+    }
+
+    /**
+     * 写入一张秒杀券的元数据
+     */
+    public void cache(SeckillVoucher voucher) {
+        Map<String, String> values = new HashMap<>();
+        values.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        values.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getVoucherId(), values);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
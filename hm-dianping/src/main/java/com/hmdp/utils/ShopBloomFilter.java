@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.CacheClientProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺id布隆过滤器
+ * <p>
+ * 启动时按id分页扫描tb_shop重建过滤器，注册到CacheClient的 cache:shop: 前缀上，
+ * 不存在的店铺id在查Redis之前就被拦下，不会再缓存一堆空值，也不会打到数据库。
+ * 新增店铺时写入过滤器，并通过 cache:bloom:shop:add 通知其它实例更新本地拷贝；
+ * 错过通知的实例定时从Redis合并位图。
+ * </p>
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheClientProperties cacheClientProperties;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 未开启时为null
+     */
+    private CacheBloomFilter bloomFilter;
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        CacheClientProperties.Bloom config = cacheClientProperties.getBloom();
+        if (!config.isEnabled()) {
+            return;
+        }
+        bloomFilter = new CacheBloomFilter(stringRedisTemplate, CACHE_SHOP_BLOOM_KEY,
+                config.getExpectedInsertions(), config.getFalsePositiveRate());
+        // 1.订阅其它实例的新增通知
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_SHOP_BLOOM_CHANNEL));
+        // 2.分页加载所有店铺id，重建位图
+        long begin = System.currentTimeMillis();
+        int[] count = {0};
+        bloomFilter.rebuild(add -> {
+            long lastId = 0;
+            while (true) {
+                // 按id翻页 select id from tb_shop where id > ? order by id limit ?
+                List<Object> ids = shopMapper.selectObjs(new QueryWrapper<Shop>()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + config.getPageSize()));
+                for (Object id : ids) {
+                    add.accept(id);
+                }
+                count[0] += ids.size();
+                if (ids.size() < config.getPageSize()) {
+                    break;
+                }
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+        });
+        // 3.注册到CacheClient
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, bloomFilter);
+        log.info("店铺布隆过滤器重建完成，店铺数={}, 位数={}, 哈希函数个数={}, 耗时{}ms", count[0],
+                bloomFilter.getBits(), bloomFilter.getHashes(), System.currentTimeMillis() - begin);
+        refreshExecutor.scheduleWithFixedDelay(this::refresh,
+                config.getRefreshIntervalMs(), config.getRefreshIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private void refresh() {
+        try {
+            if (!bloomFilter.reload()) {
+                log.warn("Redis中的店铺布隆过滤器不存在或大小不一致，key={}", CACHE_SHOP_BLOOM_KEY);
+            }
+        } catch (Exception e) {
+            log.error("合并店铺布隆过滤器异常", e);
+        }
+    }
+
+    /**
+     * 新增店铺后调用，写入过滤器并通知其它实例
+     */
+    public void add(Long shopId) {
+        if (bloomFilter == null) {
+            return;
+        }
+        bloomFilter.put(shopId);
+        stringRedisTemplate.convertAndSend(CACHE_SHOP_BLOOM_CHANNEL, shopId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        bloomFilter.putLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+}
@@ -25,7 +25,7 @@ public class SimpleRedisLock implements ILock{
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
     static {
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("mapper/unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
     }
 
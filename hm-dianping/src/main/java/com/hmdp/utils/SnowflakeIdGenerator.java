@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法id生成器，发号不访问Redis
+ * <p>
+ * id = 0 | 1位模式标记(固定为1) | 40位毫秒时间戳 | 10位worker id | 12位序列号。
+ * redis/segment模式的id是 秒级时间戳 << 32 | 序列号，第62位要到2056年才会是1，
+ * 所以两种模式的id不会重复，切换 hmdp.id-worker.mode 后新旧订单id不会冲突；40位毫秒时间戳也只够用到2056年。
+ * worker id启动时从Redis租用
+ * (SET id:worker:{n} 实例标示 NX PX ttl)，后台定时续期，续期失败超过租约时长就停止发号，
+ * 避免和接手这个worker id的实例重复。
+ * 序列号低半段正常使用，高半段留给时钟回拨：回拨不超过 max-backward-wait-ms 时等待时钟追上，
+ * 回拨更多时继续使用上一次的时间戳，从保留段中借序列号。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator {
+
+    /**
+     * 开始时间戳(毫秒)，2022-01-01
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+
+    /**
+     * 第62位固定为1，和RedisIdWorker的id空间分开
+     */
+    private static final long SNOWFLAKE_TAG = 1L << 62;
+    private static final int TIMESTAMP_BITS = 40;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    /**
+     * 正常发号的序列号 [0, RESERVED_START)，时钟回拨时借用 [RESERVED_START, SEQUENCE_MASK]
+     */
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long RESERVED_START = 1L << (SEQUENCE_BITS - 1);
+
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("mapper/id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("mapper/unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdWorkerProperties idWorkerProperties;
+
+    private final ScheduledExecutorService renewExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile long workerId = -1;
+    /**
+     * 租约有效期，超过这个时间还没续期成功就不能再发号
+     */
+    private volatile long leaseValidUntil;
+
+    private long lastTimestamp = -1;
+    private long sequence;
+    private long reservedSequence = RESERVED_START;
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(idWorkerProperties.getMode())) {
+            return;
+        }
+        acquireWorkerId();
+        long interval = idWorkerProperties.getWorkerLeaseTtlMs() / 3;
+        renewExecutor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        renewExecutor.shutdownNow();
+        if (workerId >= 0) {
+            // 主动释放，别的实例可以马上用这个worker id
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), ID_PREFIX);
+        }
+    }
+
+    /**
+     * 从随机位置开始找一个没人用的worker id
+     */
+    private void acquireWorkerId() {
+        long ttl = idWorkerProperties.getWorkerLeaseTtlMs();
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, ID_PREFIX, ttl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseValidUntil = now + ttl;
+                workerId = id;
+                log.info("租用worker id成功，workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    private void renew() {
+        try {
+            long ttl = idWorkerProperties.getWorkerLeaseTtlMs();
+            long now = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), ID_PREFIX, String.valueOf(ttl));
+            if (renewed != null && renewed == 1L) {
+                leaseValidUntil = now + ttl;
+                return;
+            }
+            // 租约已经过期，可能被别的实例拿走了，换一个新的worker id
+            log.warn("worker id租约已丢失，重新租用，workerId={}", workerId);
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("worker id续期失败，workerId={}", workerId, e);
+        }
+    }
+
+    public synchronized long nextId() {
+        long now = System.currentTimeMillis();
+        if (now > leaseValidUntil) {
+            throw new IllegalStateException("worker id租约已过期，暂停发号");
+        }
+        // 1.时钟回拨
+        if (now < lastTimestamp) {
+            long backward = lastTimestamp - now;
+            if (backward <= idWorkerProperties.getMaxBackwardWaitMs()) {
+                // 1.1.回拨不多，等时钟追上
+                now = waitUntil(lastTimestamp);
+            } else {
+                // 1.2.回拨太多，继续用上一次的时间戳，从保留段借序列号
+                log.warn("时钟回拨{}ms，使用保留序列号", backward);
+                if (reservedSequence > SEQUENCE_MASK) {
+                    // 保留段也用完了，时间戳往后借1ms
+                    advance(lastTimestamp + 1);
+                }
+                return compose(lastTimestamp, reservedSequence++);
+            }
+        }
+        // 2.同一毫秒内序列号递增，用完了等下一毫秒
+        if (now == lastTimestamp) {
+            if (sequence >= RESERVED_START) {
+                now = waitUntil(lastTimestamp + 1);
+                advance(now);
+            }
+        } else {
+            advance(now);
+        }
+        return compose(lastTimestamp, sequence++);
+    }
+
+    private void advance(long timestamp) {
+        lastTimestamp = timestamp;
+        sequence = 0;
+        reservedSequence = RESERVED_START;
+    }
+
+    private long compose(long timestamp, long seq) {
+        long elapsed = timestamp - BEGIN_TIMESTAMP;
+        if (elapsed > MAX_TIMESTAMP) {
+            // 再往后会占用模式标记位
+            throw new IllegalStateException("雪花算法时间戳已用完");
+        }
+        return SNOWFLAKE_TAG
+                | elapsed << (WORKER_ID_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | seq;
+    }
+
+    private long waitUntil(long timestamp) {
+        long now = System.currentTimeMillis();
+        while (now < timestamp) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * Redis库存和数据库库存的对账
+ * <p>
+ * 对每张券：Redis库存 + Redis中记录的已购用户数 应该等于 数据库库存 + 订单数
+ * (取消的订单两边都把库存加回去、用户记录都保留，所以也能对上)。差值就是漂移，
+ * 秒杀进行中时包含还在队列里没落库的订单，秒杀结束、队列消费完之后应该为0。
+ * 每次只检查一页券，从Redis中记录的水位线(上次检查到的voucher_id)继续，查完一轮从头开始。
+ * 漂移通过 seckill.stock.drift 指标导出；开启自动修复时，已经结束一段时间的券以数据库为准修正Redis库存。
+ * 已经清理(没有库存key)或者结束一段时间且没有漂移的券，移除对应的gauge，指标数量不会一直增长。
+ * </p>
+ */
+@Slf4j
+@Component
+public class StockReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 每张券最近一次的漂移，注册成gauge
+     */
+    private final Map<Long, AtomicLong> drifts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        if (!config.isEnabled()) {
+            return;
+        }
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcilePage,
+                config.getIntervalMs(), config.getIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdownNow();
+    }
+
+    private void reconcilePage() {
+        try {
+            SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+            // 1.从水位线开始取一页券，多个实例共用一个水位线
+            String watermark = stringRedisTemplate.opsForValue().get(SECKILL_RECONCILE_WATERMARK_KEY);
+            long from = StrUtil.isBlank(watermark) ? 0 : Long.parseLong(watermark);
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", from)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + config.getPageSize())
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcile(voucher);
+                } catch (Exception e) {
+                    log.error("库存对账异常，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+            // 2.推进水位线，不满一页说明查完一轮了，下次从头开始
+            long next = vouchers.size() < config.getPageSize() ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+            stringRedisTemplate.opsForValue().set(SECKILL_RECONCILE_WATERMARK_KEY, String.valueOf(next));
+        } catch (Exception e) {
+            log.error("库存对账异常", e);
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.Redis中的库存，没有库存key的券不是走Redis秒杀的或者已经清理了，跳过
+        Long redisStock = redisStock(voucherId);
+        if (redisStock == null) {
+            removeDrift(voucherId);
+            return;
+        }
+        // 2.两边各自 库存 + 已售
+        long buyers = redisBuyers(voucherId);
+        long leases = outstandingLeases(voucherId);
+        long orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        long dbTotal = voucher.getStock() + orders;
+        long drift = redisStock + buyers + leases - dbTotal;
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        LocalDateTime settledBefore = LocalDateTime.now().minusNanos(config.getRepairGraceMs() * 1_000_000L);
+        boolean settled = voucher.getEndTime().isBefore(settledBefore);
+        if (drift == 0) {
+            // 结束一段时间且已经对上的券不会再变，不再导出
+            if (settled) {
+                removeDrift(voucherId);
+            } else {
+                driftOf(voucherId).set(0);
+            }
+            return;
+        }
+        log.warn("库存漂移，voucherId={}, Redis库存={}, Redis已购={}, 数据库库存={}, 订单数={}",
+                voucherId, redisStock, buyers + leases, voucher.getStock(), orders);
+        // 3.已经结束一段时间的券(队列里的订单早已落库)，以数据库为准修正Redis库存
+        if (config.isAutoRepair() && settled && leases == 0) {
+            repair(voucherId, voucher.getStock());
+            // 修正的只是库存，已购用户数和订单数对不上的部分还在
+            drift = buyers - orders;
+            log.warn("已按数据库修正Redis库存，voucherId={}, 库存={}, 剩余漂移={}", voucherId, voucher.getStock(), drift);
+        }
+        driftOf(voucherId).set(drift);
+    }
+
+    private Long redisStock(Long voucherId) {
+        if (stockShards.isEnabled()) {
+            long sum = 0;
+            boolean exists = false;
+            for (int s = 0; s < seckillProperties.getShard().getStockShards(); s++) {
+                String value = stringRedisTemplate.opsForValue().get(stockShards.stockKey(voucherId, s));
+                if (value != null) {
+                    exists = true;
+                    sum += Long.parseLong(value);
+                }
+            }
+            return exists ? sum : null;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        return value == null ? null : Long.parseLong(value);
+    }
+
+    /**
+     * Redis中记录的已购用户数，按去重方式和是否分片统计
+     */
+    private long redisBuyers(Long voucherId) {
+        if (!stockShards.isEnabled()) {
+            return buyersOf(SECKILL_ORDER_KEY + voucherId);
+        }
+        long sum = 0;
+        for (int p = 0; p < seckillProperties.getOrder().getPartitions(); p++) {
+            sum += buyersOf(SECKILL_ORDER_KEY + "{" + p + "}:" + voucherId);
+        }
+        return sum;
+    }
+
+    private long buyersOf(String orderKey) {
+        String mode = seckillProperties.getDedupe().getMode();
+        if ("bitmap".equals(mode)) {
+            Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.stringCommands().bitCount((orderKey + ":bitmap").getBytes(StandardCharsets.UTF_8)));
+            return count == null ? 0 : count;
+        }
+        if ("bloom".equals(mode)) {
+            // 布隆过滤器记录了每一层写入的个数
+            long sum = 0;
+            for (Map.Entry<Object, Object> entry : stringRedisTemplate.opsForHash().entries(orderKey + ":bloom").entrySet()) {
+                if (entry.getKey().toString().startsWith("count:")) {
+                    sum += Long.parseLong(entry.getValue().toString());
+                }
+            }
+            return sum;
+        }
+        Long size = stringRedisTemplate.opsForSet().size(orderKey);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * 各实例租走还没卖出去的库存
+     */
+    private long outstandingLeases(Long voucherId) {
+        long sum = 0;
+        for (Object value : stringRedisTemplate.opsForHash().values(SECKILL_LEASE_KEY + voucherId)) {
+            sum += Long.parseLong(value.toString());
+        }
+        return sum;
+    }
+
+    private void repair(Long voucherId, int stock) {
+        if (stockShards.isEnabled()) {
+            stockShards.split(voucherId, stock);
+        } else {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        }
+    }
+
+    private AtomicLong driftOf(Long voucherId) {
+        return drifts.computeIfAbsent(voucherId, id -> {
+            AtomicLong drift = new AtomicLong();
+            Gauge.builder("seckill.stock.drift", drift, AtomicLong::get)
+                    .description("Redis库存+已购 与 数据库库存+订单数 的差值")
+                    .tag("voucherId", id.toString())
+                    .register(meterRegistry);
+            return drift;
+        });
+    }
+
+    private void removeDrift(Long voucherId) {
+        if (drifts.remove(voucherId) == null) {
+            return;
+        }
+        Meter gauge = meterRegistry.find("seckill.stock.drift").tag("voucherId", voucherId.toString()).gauge();
+        if (gauge != null) {
+            meterRegistry.remove(gauge);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_CONSUMER_INSTANCES_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * 订单消息队列的分区管理
+ * <p>
+ * seckill.lua按userId把订单写入 stream.orders.{n}，每个实例定时在Redis中登记心跳，
+ * 所有存活实例按instanceId排序后，分区n归第 n % 实例数 个实例消费。实例上下线后，
+ * 下一次心跳就会重新分配分区。
+ * </p>
+ */
+@Slf4j
+@Component
+public class StreamPartitionManager {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private Environment environment;
+
+    private String instanceId;
+
+    /**
+     * 当前实例负责的分区
+     */
+    private volatile List<Integer> ownedPartitions = Collections.emptyList();
+
+    /**
+     * 最近一次心跳看到的存活实例
+     */
+    private volatile List<String> liveInstances = Collections.emptyList();
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Order order = seckillProperties.getOrder();
+        instanceId = resolveInstanceId();
+        // 1.为每个分区创建消费者组，stream不存在时一并创建(MKSTREAM)
+        for (int partition = 0; partition < order.getPartitions(); partition++) {
+            createGroupIfAbsent(streamKey(partition), order.getGroup());
+        }
+        // 2.先登记一次，拿到初始分区，再定时心跳
+        heartbeat();
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                order.getHeartbeatIntervalMs(), order.getHeartbeatIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        // 主动下线，其它实例下一次心跳就能接管分区，不用等超时
+        stringRedisTemplate.opsForZSet().remove(SECKILL_CONSUMER_INSTANCES_KEY, instanceId);
+    }
+
+    private void heartbeat() {
+        try {
+            SeckillProperties.Order order = seckillProperties.getOrder();
+            long now = System.currentTimeMillis();
+            // 1.登记心跳 ZADD seckill:consumer:instances now instanceId
+            stringRedisTemplate.opsForZSet().add(SECKILL_CONSUMER_INSTANCES_KEY, instanceId, now);
+            // 2.清理超时未心跳的实例
+            stringRedisTemplate.opsForZSet()
+                    .removeRangeByScore(SECKILL_CONSUMER_INSTANCES_KEY, 0, now - order.getInstanceTtlMs());
+            // 3.存活实例按id排序，保证每个实例算出来的分配结果一致
+            Set<String> live = stringRedisTemplate.opsForZSet().range(SECKILL_CONSUMER_INSTANCES_KEY, 0, -1);
+            List<String> instances = live == null ? new ArrayList<>() : new ArrayList<>(live);
+            if (!instances.contains(instanceId)) {
+                instances.add(instanceId);
+            }
+            Collections.sort(instances);
+            liveInstances = Collections.unmodifiableList(instances);
+            int index = instances.indexOf(instanceId);
+            // 4.分区n归第 n % size 个实例
+            List<Integer> owned = new ArrayList<>();
+            for (int partition = 0; partition < order.getPartitions(); partition++) {
+                if (partition % instances.size() == index) {
+                    owned.add(partition);
+                }
+            }
+            if (!owned.equals(ownedPartitions)) {
+                log.info("订单分区重新分配，instanceId={}, 存活实例数={}, 分区={}", instanceId, instances.size(), owned);
+                ownedPartitions = Collections.unmodifiableList(owned);
+            }
+        } catch (Exception e) {
+            log.error("订单分区心跳异常", e);
+        }
+    }
+
+    private void createGroupIfAbsent(String streamKey, String group) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), group);
+        } catch (RedisSystemException e) {
+            // BUSYGROUP 说明消费者组已经存在，忽略即可
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private String resolveInstanceId() {
+        String configured = seckillProperties.getOrder().getInstanceId();
+        if (StrUtil.isNotBlank(configured)) {
+            return configured;
+        }
+        // 默认用 主机名:端口，重启后还是同一个消费者名，能接着处理自己pending-list中的消息
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        return host + ":" + environment.getProperty("server.port", "8080");
+    }
+
+    /**
+     * 当前实例负责的所有分区的stream
+     */
+    public List<String> ownedStreams() {
+        return streamsOf(0, 1);
+    }
+
+    /**
+     * 第worker个消费线程负责的stream。分区比线程多时平分分区；
+     * 分区比线程少时，所有线程一起读这些分区，由消费者组保证一条消息只投递给一个线程
+     */
+    public List<String> streamsOf(int worker, int workers) {
+        List<Integer> owned = ownedPartitions;
+        List<String> streams = new ArrayList<>();
+        for (int i = 0; i < owned.size(); i++) {
+            if (owned.size() < workers || i % workers == worker) {
+                streams.add(streamKey(owned.get(i)));
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * 当前实例上第worker个消费线程的消费者名称，保证集群内唯一
+     */
+    public String consumerName(int worker) {
+        return instanceId + "-" + worker;
+    }
+
+    /**
+     * 分区stream的key：stream.orders.{n}，{n}是Redis Cluster的hash tag
+     */
+    public String streamKey(int partition) {
+        return SECKILL_ORDER_STREAM_KEY + "{" + partition + "}";
+    }
+
+    /**
+     * 实例是否还在心跳，用于回收已下线实例占用的资源
+     */
+    public boolean isAlive(String instanceId) {
+        return liveInstances.contains(instanceId);
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+}
@@ -0,0 +1,11 @@
+-- 把重建好的布隆过滤器位图合并到正式key上
+-- KEYS[1] 正式key，KEYS[2] 重建时写入的临时key
+-- 大小一致时BITOP OR合并，重建期间其它实例SETBIT写入的位不会丢；大小不一致(改了配置)或者还不存在时直接替换
+local tmpLen = redis.call('strlen', KEYS[2])
+if (redis.call('strlen', KEYS[1]) == tmpLen) then
+    redis.call('bitop', 'or', KEYS[1], KEYS[1], KEYS[2])
+    redis.call('del', KEYS[2])
+    return 1
+end
+redis.call('rename', KEYS[2], KEYS[1])
+return 0
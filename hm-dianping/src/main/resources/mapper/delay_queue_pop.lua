@@ -0,0 +1,8 @@
+-- 从延迟队列的一个分桶中取出已经到期的元素，取出的同时删除，多个实例同时拉取也不会重复
+-- KEYS[1] 分桶key delay:queue:{topic}:{n}，ARGV[1] 当前时间(毫秒)，ARGV[2] 最多取多少个
+-- ZRANGEBYSCORE带LIMIT，只访问到期的那一段，不会扫描整个集合
+local items = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+if (#items > 0) then
+    redis.call('zrem', KEYS[1], unpack(items))
+end
+return items
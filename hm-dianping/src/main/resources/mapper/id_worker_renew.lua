@@ -0,0 +1,6 @@
+-- 续期worker id租约，KEYS[1] 是 id:worker:{workerId}，ARGV[1] 是本实例的标示，ARGV[2] 是租约时长(毫秒)
+-- 租约还是自己的才续期，已经过期被别人拿走就返回0
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+  return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
@@ -1,3 +1,5 @@
+-- TIME是非确定性命令，之后还有写操作，按命令复制(Redis 5之前需要)
+redis.replicate_commands()
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1];
@@ -5,24 +7,50 @@ local voucherId = ARGV[1];
 local userId = ARGV[2];
 --1.3 订单id 新增orderId，但是变量名用id就好，因为VoucherOrder实体类中的orderId就是用id表示的
 local orderId = ARGV[3]
+-- 1.4 订单stream的分区数，0表示订单走本地队列，不写stream
+local partitions = tonumber(ARGV[4])
+-- 1.5 一人一单去重方式(set/bitmap/bloom)及布隆过滤器参数
+dedupe.setup(ARGV[5], ARGV[6], ARGV[7])
 
 
 -- 2.数据key
 -- 2.1.库存key
-local stockey = 'seckill:stock:' .. voucherId --lua的字符串拼接使用..
+local stockKey = 'seckill:stock:' .. voucherId --lua的字符串拼接使用..
 
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
 
+-- 2.3.订单stream key，按userId取模选分区，热点券的订单也能分散到所有分区
+-- {n}是Redis Cluster的hash tag，同一分区的key落在同一个slot
+local streamKey
+if(partitions > 0) then
+    streamKey = 'stream.orders.{' .. (tonumber(userId) % partitions) .. '}'
+end
+
 -- 3.脚本业务
+-- 3.0.判断秒杀时间，用Redis的TIME，不受各实例时钟影响；没有缓存元数据的券不判断
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if(now > tonumber(window[2])) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+end
+
 -- 3.1.判断库存是否充足 get stockKey
 if(tonumber(redis.call('get', stockKey)) <= 0) then --字符串转数字是tonumber()
     -- 3.2.库存不足，返回1
     return 1
 end
 
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
+-- 3.2.判断用户是否下单
+if(dedupe.exists(orderKey, userId)) then
     -- 3.3.存在，说明是重复下单，返回2
     return 2
 end
@@ -30,11 +58,13 @@ end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
+-- 3.5.下单（保存用户），按配置的去重方式记录
+dedupe.add(orderKey, userId)
 
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId);
+-- 3.6.发送消息到队列中， XADD stream.orders.{n} * k1 v1 k2 v2 ...
+if(streamKey) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId);
+end
 return 0;
 
 
@@ -0,0 +1,54 @@
+-- 合并后的秒杀脚本：一次处理同一张券的多个用户，逻辑和seckill.lua逐个用户执行一样
+-- TIME是非确定性命令，之后还有写操作，按命令复制(Redis 5之前需要)
+redis.replicate_commands()
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.订单stream的分区数，0表示订单走本地队列，不写stream
+local partitions = tonumber(ARGV[2])
+-- 1.3.一人一单去重方式及布隆过滤器参数
+dedupe.setup(ARGV[3], ARGV[4], ARGV[5])
+-- 1.4.从ARGV[6]开始是 userId, orderId 成对出现
+
+-- 2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+
+-- 3.脚本业务，按请求到达的顺序逐个判断，结果按顺序放进数组返回
+local results = {}
+-- 3.0.判断秒杀时间，不在秒杀时间内整批返回3(未开始)或4(已结束)
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local code = (now < tonumber(window[1]) and 3) or (now > tonumber(window[2]) and 4) or 0
+    if(code ~= 0) then
+        for i = 6, #ARGV, 2 do
+            results[#results + 1] = code
+        end
+        return results
+    end
+end
+local stock = tonumber(redis.call('get', stockKey)) or 0
+for i = 6, #ARGV, 2 do
+    local userId = ARGV[i]
+    local orderId = ARGV[i + 1]
+    if(stock <= 0) then
+        -- 3.1.库存不足，返回1
+        results[#results + 1] = 1
+    elseif(dedupe.exists(orderKey, userId)) then
+        -- 3.2.重复下单(包括同一批中的重复请求)，返回2
+        results[#results + 1] = 2
+    else
+        -- 3.3.扣库存、下单、发消息
+        stock = stock - 1
+        redis.call('incrby', stockKey, -1)
+        dedupe.add(orderKey, userId)
+        if(partitions > 0) then
+            local streamKey = 'stream.orders.{' .. (tonumber(userId) % partitions) .. '}'
+            redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+        end
+        results[#results + 1] = 0
+    end
+end
+return results
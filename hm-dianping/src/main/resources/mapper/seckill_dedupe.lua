@@ -0,0 +1,94 @@
+-- 一人一单去重，由 SeckillDedupe 拼接在秒杀脚本前面，秒杀脚本中通过 dedupe.exists / dedupe.add 使用
+-- set:    SISMEMBER/SADD，每个用户在集合中存一个userId字符串
+-- bitmap: GETBIT/SETBIT，偏移量就是userId，用户id是连续自增的，每个用户只占1bit
+-- bloom:  可扩容的布隆过滤器，满了就追加一层容量翻倍、误判率减半的新过滤器；
+--         会把少量没买过的用户误判成买过(误判率errorRate)，但不会漏判
+local dedupe = { mode = 'set', capacity = '100000', errorRate = '0.001' }
+
+-- 1.设置去重方式，参数由脚本的ARGV传入
+function dedupe.setup(mode, capacity, errorRate)
+    dedupe.mode = mode or dedupe.mode
+    dedupe.capacity = capacity or dedupe.capacity
+    dedupe.errorRate = errorRate or dedupe.errorRate
+end
+
+-- 2.布隆过滤器
+-- 2.1.第i层的容量、位数和哈希函数个数，参数以创建时写入meta的为准，改配置不影响已有的过滤器
+local function bloomLayer(meta, i)
+    local capacity = tonumber(redis.call('hget', meta, 'capacity')) * (2 ^ i)
+    local errorRate = tonumber(redis.call('hget', meta, 'errorRate')) * (0.5 ^ (i + 1))
+    local bits = math.ceil(capacity * -math.log(errorRate) / (math.log(2) ^ 2))
+    local hashes = math.ceil(-math.log(errorRate) / math.log(2))
+    return capacity, bits, hashes
+end
+
+-- 2.2.双重哈希 h1 + j*h2 算出userId在这一层的所有bit位置
+local function bloomPositions(userId, bits, hashes)
+    local h = redis.sha1hex(userId)
+    local h1 = tonumber(string.sub(h, 1, 8), 16)
+    local h2 = tonumber(string.sub(h, 9, 16), 16)
+    local positions = {}
+    for j = 0, hashes - 1 do
+        positions[j + 1] = (h1 + j * h2) % bits
+    end
+    return positions
+end
+
+local function bloomExists(key, userId)
+    local meta = key .. ':bloom'
+    local layers = tonumber(redis.call('hget', meta, 'layers')) or 0
+    for i = 0, layers - 1 do
+        local _, bits, hashes = bloomLayer(meta, i)
+        local hit = true
+        for _, pos in ipairs(bloomPositions(userId, bits, hashes)) do
+            if redis.call('getbit', meta .. ':' .. i, pos) == 0 then
+                hit = false
+                break
+            end
+        end
+        if hit then
+            return true
+        end
+    end
+    return false
+end
+
+local function bloomAdd(key, userId)
+    local meta = key .. ':bloom'
+    redis.call('hsetnx', meta, 'capacity', dedupe.capacity)
+    redis.call('hsetnx', meta, 'errorRate', dedupe.errorRate)
+    local layers = tonumber(redis.call('hget', meta, 'layers')) or 0
+    -- 最后一层已经写满，追加一层
+    local i = layers - 1
+    if layers == 0 or tonumber(redis.call('hget', meta, 'count:' .. i)) >= bloomLayer(meta, i) then
+        i = layers
+        redis.call('hset', meta, 'layers', layers + 1)
+    end
+    local _, bits, hashes = bloomLayer(meta, i)
+    for _, pos in ipairs(bloomPositions(userId, bits, hashes)) do
+        redis.call('setbit', meta .. ':' .. i, pos, 1)
+    end
+    redis.call('hincrby', meta, 'count:' .. i, 1)
+end
+
+-- 3.判断用户是否已经下过单
+function dedupe.exists(key, userId)
+    if dedupe.mode == 'bitmap' then
+        return redis.call('getbit', key .. ':bitmap', userId) == 1
+    elseif dedupe.mode == 'bloom' then
+        return bloomExists(key, userId)
+    end
+    return redis.call('sismember', key, userId) == 1
+end
+
+-- 4.记录用户已下单
+function dedupe.add(key, userId)
+    if dedupe.mode == 'bitmap' then
+        redis.call('setbit', key .. ':bitmap', userId, 1)
+    elseif dedupe.mode == 'bloom' then
+        bloomAdd(key, userId)
+    else
+        redis.call('sadd', key, userId)
+    end
+end
+
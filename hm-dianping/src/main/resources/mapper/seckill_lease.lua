@@ -0,0 +1,27 @@
+-- 从Redis库存中租一批库存到本节点
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.实例id
+local instanceId = ARGV[2]
+-- 1.3.每次最多租多少
+local size = tonumber(ARGV[3])
+
+-- 2.数据key
+-- 2.1.库存key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 2.2.租约key，hash中记录每个实例租走还没卖出去的库存
+local leaseKey = 'seckill:lease:' .. voucherId
+
+-- 3.脚本业务
+-- 3.1.能租多少就租多少
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local n = math.min(stock, size)
+if (n <= 0) then
+    -- 3.2.库存不足，返回0
+    return 0
+end
+-- 3.3.扣库存，记到当前实例名下
+redis.call('incrby', stockKey, -n)
+redis.call('hincrby', leaseKey, instanceId, n)
+return n
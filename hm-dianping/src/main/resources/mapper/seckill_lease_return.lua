@@ -0,0 +1,25 @@
+-- 把租约中没卖出去的库存还给Redis
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.实例id
+local instanceId = ARGV[2]
+-- 1.3.归还数量，不会超过该实例名下剩余的租约
+local count = tonumber(ARGV[3])
+
+-- 2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+
+-- 3.脚本业务
+local outstanding = tonumber(redis.call('hget', leaseKey, instanceId)) or 0
+local n = math.min(count, outstanding)
+if (n > 0) then
+    redis.call('incrby', stockKey, n)
+end
+if (outstanding - n <= 0) then
+    redis.call('hdel', leaseKey, instanceId)
+else
+    redis.call('hincrby', leaseKey, instanceId, -n)
+end
+return n
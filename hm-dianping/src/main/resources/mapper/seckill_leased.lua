@@ -0,0 +1,45 @@
+-- 租约模式下的秒杀脚本：库存已经在本节点扣过了，这里只做一人一单校验和发消息，不碰库存key
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.订单id
+local orderId = ARGV[3]
+-- 1.4.订单stream的分区数，0表示订单走本地队列，不写stream
+local partitions = tonumber(ARGV[4])
+-- 1.5.实例id
+local instanceId = ARGV[5]
+-- 1.6.一人一单去重方式及布隆过滤器参数
+dedupe.setup(ARGV[6], ARGV[7], ARGV[8])
+
+-- 2.数据key
+-- 2.1.订单key
+local orderKey = 'seckill:order:' .. voucherId
+-- 2.2.租约key
+local leaseKey = 'seckill:lease:' .. voucherId
+-- 2.3.订单stream key
+local streamKey
+if(partitions > 0) then
+    streamKey = 'stream.orders.{' .. (tonumber(userId) % partitions) .. '}'
+end
+
+-- 3.脚本业务
+-- 3.1.实例名下已经没有租约(超时被其它实例回收了)，本地的库存作废，返回1
+if((tonumber(redis.call('hget', leaseKey, instanceId)) or 0) <= 0) then
+    return 1
+end
+-- 3.2.判断用户是否下单
+if(dedupe.exists(orderKey, userId)) then
+    -- 存在，说明是重复下单，返回2，库存由调用方还回本地租约
+    return 2
+end
+-- 3.3.下单（保存用户），按配置的去重方式记录
+dedupe.add(orderKey, userId)
+-- 3.4.租约中卖掉了一个，实例宕机时只需要归还剩下的
+redis.call('hincrby', leaseKey, instanceId, -1)
+-- 3.5.发送消息到队列中
+if(streamKey) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+return 0
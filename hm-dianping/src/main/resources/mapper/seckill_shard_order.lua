@@ -0,0 +1,24 @@
+-- 分片库存模式下的下单脚本，库存已经在某个分片扣过了
+-- KEYS[1] 订单key seckill:order:{n}:voucherId，KEYS[2] 订单stream key stream.orders.{n}
+-- 两个key带同一个hash tag {n}(n = userId % 分区数)，在Redis Cluster中落在同一个slot
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.订单id
+local orderId = ARGV[3]
+-- 1.4.一人一单去重方式及布隆过滤器参数
+dedupe.setup(ARGV[4], ARGV[5], ARGV[6])
+
+-- 2.脚本业务
+-- 2.1.判断用户是否下单
+if(dedupe.exists(KEYS[1], userId)) then
+    -- 存在，说明是重复下单，返回2，调用方把库存还回分片
+    return 2
+end
+-- 2.2.下单（保存用户），按配置的去重方式记录
+dedupe.add(KEYS[1], userId)
+-- 2.3.发送消息到队列中
+redis.call('xadd', KEYS[2], '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
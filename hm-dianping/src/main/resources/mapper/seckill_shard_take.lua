@@ -0,0 +1,8 @@
+-- 分片库存：从一个库存分片中扣一个库存
+-- KEYS[1] 库存分片key seckill:stock:{voucherId:s}
+-- 返回1表示扣减成功，0表示这个分片已经没有库存
+if((tonumber(redis.call('get', KEYS[1])) or 0) <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,36 @@
+-- 按消费进度裁剪订单stream，只删除已经投递并且确认过的消息
+-- KEYS[1] stream.orders.{n}，ARGV[1] 消费者组，ARGV[2] 长度上限(0表示不限制)
+-- 返回 {删除的条数, 裁剪位置}
+-- XINFO/XPENDING的结果和时间有关，之后还有写操作，按命令复制(Redis 5之前需要)
+redis.replicate_commands()
+if(redis.call('exists', KEYS[1]) == 0) then
+    return {0, '0-0'}
+end
+-- 1.找到消费者组，拿到已投递的最大id，之后的消息还没被读过，不能删
+local lastDelivered
+for _, info in ipairs(redis.call('xinfo', 'groups', KEYS[1])) do
+    local group = {}
+    for i = 1, #info, 2 do
+        group[info[i]] = info[i + 1]
+    end
+    if(group['name'] == ARGV[1]) then
+        lastDelivered = group['last-delivered-id']
+    end
+end
+if(not lastDelivered) then
+    return {0, '0-0'}
+end
+-- 2.pending-list中最早的消息还没确认，从它开始保留 XPENDING key group 返回 {条数, 最小id, 最大id, 消费者}
+local threshold = lastDelivered
+local pending = redis.call('xpending', KEYS[1], ARGV[1])
+if(pending[1] > 0) then
+    threshold = pending[2]
+end
+-- 3.XTRIM MINID ~ 按宏节点整块删除，比精确裁剪便宜得多，会多留一些消息
+local trimmed = redis.call('xtrim', KEYS[1], 'MINID', '~', threshold)
+-- 4.配置了长度上限时再按长度兜底，可能删掉还没处理的消息，只用于保护Redis内存
+local maxLen = tonumber(ARGV[2])
+if(maxLen > 0 and redis.call('xlen', KEYS[1]) > maxLen) then
+    trimmed = trimmed + redis.call('xtrim', KEYS[1], 'MAXLEN', '~', maxLen)
+end
+return {trimmed, threshold}
@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheValues;
+import com.hmdp.utils.JacksonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逻辑过期缓存值的编解码对比，对象是一个字段都填满的Shop
+ * <p>
+ * hutool：原来的方式，RedisData包一层转json，读取时先解析RedisData，再把data(JSONObject)转一次Shop；
+ * json/smile：CacheValues格式，过期时间在头部，对象一次解码成Shop。
+ * 不需要Redis，运行main方法即可，编码后的大小在setup时打印。
+ * 开启了GC profiler，每次调用分配的字节数看结果中的 ·gc.alloc.rate.norm
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+public class CacheCodecBenchmark {
+
+    @Param({"hutool", "json", "smile"})
+    private String codec;
+
+    private Shop shop;
+    private long expireAt;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        encoded = encode();
+        System.out.println(codec + " 编码后大小：" + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        if ("hutool".equals(codec)) {
+            RedisData redisData = new RedisData();
+            redisData.setData(shop);
+            redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        }
+        return CacheValues.encode(JacksonCacheCodec.of(codec), shop, expireAt);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        if ("hutool".equals(codec)) {
+            RedisData redisData = JSONUtil.toBean(new String(encoded, StandardCharsets.UTF_8), RedisData.class);
+            return JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+        }
+        return CacheValues.decode(encoded, Shop.class);
+    }
+
+    /**
+     * 只判断是否逻辑过期
+     */
+    @Benchmark
+    public long expireAt() {
+        if ("hutool".equals(codec)) {
+            return JSONUtil.toBean(new String(encoded, StandardCharsets.UTF_8), RedisData.class)
+                    .getExpireTime().getSecond();
+        }
+        return CacheValues.expireAt(encoded);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -1,17 +1,28 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillDedupe;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -38,6 +49,12 @@ class  HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
@@ -91,5 +108,95 @@ class  HmDianPingApplicationTests {
         }
     }
 
+    @Test
+    void testVoucherOrderBatchThroughput() {
+        int total = 2000;
+        int batchSize = 100;
+        long voucherId = 99999L;
+        //1. 准备一张库存充足的测试秒杀券
+        SeckillVoucher voucher = new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setStock(total * 2)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.saveOrUpdate(voucher);
+        try {
+            //2. 逐条落库(消费者的处理路径)：每条一个事务、一次insert ignore、一次update，不再加分布式锁
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                voucherOrderService.handleVoucherOrder(newOrder(voucherId, 1_000_000L + i));
+            }
+            long single = System.currentTimeMillis() - begin;
+
+            //3. 批量落库：每批一个事务、一次查询、一次update、一次多行insert
+            begin = System.currentTimeMillis();
+            for (int i = 0; i < total; i += batchSize) {
+                List<VoucherOrder> batch = new ArrayList<>(batchSize);
+                for (int j = i; j < i + batchSize; j++) {
+                    batch.add(newOrder(voucherId, 2_000_000L + j));
+                }
+                voucherOrderService.createVoucherOrderBatch(batch);
+            }
+            long batched = System.currentTimeMillis() - begin;
+
+            System.out.println("single  time = " + single + "ms, tps = " + total * 1000L / Math.max(single, 1)
+                    + ", latency = " + single * 1000L / total + "us/order");
+            System.out.println("batched time = " + batched + "ms, tps = " + total * 1000L / Math.max(batched, 1));
+        } finally {
+            //4. 清理测试数据
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
 
+    @Test
+    void testSeckillDedupeMemory() {
+        int users = 200_000;
+        // 只做一人一单校验的脚本，和秒杀脚本用同一份去重逻辑
+        DefaultRedisScript<Long> script = SeckillDedupe.wrap(
+                "dedupe.setup(ARGV[2], ARGV[3], ARGV[4])\n" +
+                "if(dedupe.exists(KEYS[1], ARGV[1])) then return 1 end\n" +
+                "dedupe.add(KEYS[1], ARGV[1])\n" +
+                "return 0");
+        for (String mode : new String[]{"set", "bitmap", "bloom"}) {
+            String key = "seckill:order:bench:" + mode;
+            List<String> keys = Collections.singletonList(key);
+            //1. 模拟连续自增的用户id逐个下单
+            long begin = System.nanoTime();
+            for (long userId = 1; userId <= users; userId++) {
+                stringRedisTemplate.execute(script, keys, String.valueOf(userId), mode, "100000", "0.001");
+            }
+            long addNanos = System.nanoTime() - begin;
+            //2. 已下单用户再次请求，bloom模式下统计没买过的用户被误判的比例
+            int duplicated = 0;
+            int falsePositive = 0;
+            begin = System.nanoTime();
+            for (long userId = 1; userId <= users; userId++) {
+                duplicated += stringRedisTemplate.execute(script, keys, String.valueOf(userId), mode, "100000", "0.001");
+                falsePositive += stringRedisTemplate.execute(script, keys, String.valueOf(users + userId), mode, "100000", "0.001");
+            }
+            long checkNanos = System.nanoTime() - begin;
+            //3. 统计内存占用
+            List<String> usedKeys = new ArrayList<>(stringRedisTemplate.keys(key + "*"));
+            long bytes = 0;
+            for (String usedKey : usedKeys) {
+                Long used = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                        "MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), usedKey.getBytes(StandardCharsets.UTF_8)));
+                bytes += used == null ? 0 : used;
+            }
+            System.out.println(mode + ": memory = " + bytes / 1024 + "KB"
+                    + ", add = " + addNanos / users / 1000 + "us/op"
+                    + ", check = " + checkNanos / users / 2 / 1000 + "us/op"
+                    + ", duplicated = " + duplicated + "/" + users
+                    + ", falsePositive = " + falsePositive + "/" + users);
+            stringRedisTemplate.delete(usedKeys);
+        }
+    }
+
+    private VoucherOrder newOrder(long voucherId, long userId) {
+        return new VoucherOrder()
+                .setId(redisIdWorker.nextId("order"))
+                .setUserId(userId)
+                .setVoucherId(voucherId);
+    }
 }
@@ -0,0 +1,74 @@
+package com.hmdp;
+
+import com.hmdp.config.IdWorkerProperties;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisIdWorker三种模式的吞吐量对比，和testIdworker一样用500个线程并发取id
+ * <p>
+ * 需要本地Redis(-Dredis.host/-Dredis.port)，运行main方法即可
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(500)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class IdWorkerBenchmark {
+
+    @Param({"redis", "segment", "snowflake"})
+    private String mode;
+
+    private LettuceConnectionFactory connectionFactory;
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+    private RedisIdWorker redisIdWorker;
+
+    @Setup
+    public void setup() {
+        connectionFactory = new LettuceConnectionFactory(
+                System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        stringRedisTemplate.afterPropertiesSet();
+
+        IdWorkerProperties properties = new IdWorkerProperties();
+        properties.setMode(mode);
+        snowflakeIdGenerator = new SnowflakeIdGenerator();
+        ReflectionTestUtils.setField(snowflakeIdGenerator, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(snowflakeIdGenerator, "idWorkerProperties", properties);
+        ReflectionTestUtils.invokeMethod(snowflakeIdGenerator, "init");
+        redisIdWorker = new RedisIdWorker(stringRedisTemplate, properties, snowflakeIdGenerator);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(snowflakeIdGenerator, "destroy");
+        ReflectionTestUtils.invokeMethod(redisIdWorker, "destroy");
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("order");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IdWorkerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀全链路压测：内嵌Redis + H2(MySQL模式)，不依赖外部环境
+ * <p>
+ * mvn test -P loadtest 运行，默认的mvn test不会执行。参数用系统属性调整：
+ * -Dloadtest.users=5000 -Dloadtest.stock=1000 -Dloadtest.concurrency=500 -Dloadtest.attempts=2，
+ * 其它配置照常覆盖，比如 -Dhmdp.seckill.order.queue=ring 对比本地队列和Redis Stream。
+ * 每个用户请求attempts次 /voucher-order/seckill/{id}，输出吞吐量、p50/p99/p999延迟和队列消费完的耗时，
+ * 并检查没有超卖、没有重复下单、Redis和数据库库存一致。
+ * </p>
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("loadtest")
+class SeckillLoadTest {
+
+    private static RedisServer redisServer;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        // 容器启动前拉起内嵌Redis，端口随机，避免和本机的Redis冲突
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer().port(port).setting("save \"\"").build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Test
+    void seckillLoadTest() throws Exception {
+        int users = Integer.getInteger("loadtest.users", 5000);
+        int stock = Integer.getInteger("loadtest.stock", 1000);
+        int concurrency = Integer.getInteger("loadtest.concurrency", 500);
+        int attempts = Integer.getInteger("loadtest.attempts", 2);
+        // HttpURLConnection默认每个地址只保留5个空闲连接，压测线程多时会不停地新建连接
+        System.setProperty("http.maxConnections", String.valueOf(concurrency));
+
+        //1. 通过接口创建一张正在秒杀的券，和线上一样写入Redis库存
+        Long voucherId = createSeckillVoucher(stock);
+        //2. 准备登录用户，token直接写入Redis
+        String[] tokens = new String[users];
+        for (int i = 0; i < users; i++) {
+            tokens[i] = "loadtest-" + i;
+            Map<String, String> user = new HashMap<>();
+            user.put("id", String.valueOf(10_000_000L + i));
+            user.put("nickName", "user" + i);
+            stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + tokens[i], user);
+        }
+
+        //3. 每个用户请求attempts次，打乱顺序，同一个用户的重复请求并发到达
+        int total = users * attempts;
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i % users;
+        }
+        Collections.shuffle(Arrays.asList(order));
+        long[] latencies = new long[total];
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        ExecutorService es = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch latch = new CountDownLatch(total);
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            int index = i;
+            es.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    JSONObject result = post("/voucher-order/seckill/" + voucherId, tokens[order[index]], null);
+                    if (result.getBool("success")) {
+                        success.incrementAndGet();
+                    } else {
+                        failures.computeIfAbsent(result.getStr("errorMsg"), k -> new AtomicInteger()).incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    latencies[index] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //4. 等队列里的订单全部落库
+        long drainBegin = System.nanoTime();
+        long deadline = System.currentTimeMillis() + 60_000;
+        int orders = countOrders(voucherId);
+        while (orders < success.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            orders = countOrders(voucherId);
+        }
+        long drain = System.nanoTime() - drainBegin;
+
+        //5. 报告
+        Arrays.sort(latencies);
+        System.out.println("===== 秒杀压测 =====");
+        System.out.printf("用户=%d, 库存=%d, 并发=%d, 请求=%d, 队列=%s%n", users, stock, concurrency, total,
+                System.getProperty("hmdp.seckill.order.queue", "stream"));
+        System.out.printf("耗时=%dms, 吞吐量=%.0f req/s, 成功=%d, 失败=%s, 异常=%d%n",
+                TimeUnit.NANOSECONDS.toMillis(elapsed), total * 1e9 / elapsed, success.get(), failures, errors.get());
+        System.out.printf("延迟 p50=%.2fms, p99=%.2fms, p999=%.2fms, max=%.2fms%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[total - 1] / 1e6);
+        System.out.printf("订单全部落库耗时=%dms%n", TimeUnit.NANOSECONDS.toMillis(drain));
+
+        //6. 校验：不超卖、一人一单、Redis和数据库库存一致
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        List<Object> userIds = voucherOrderService.listObjs(
+                voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).getWrapper());
+        int redisStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId));
+        assertEquals(0, errors.get(), "请求异常");
+        assertEquals(Math.min(users, stock), success.get(), "成功下单数应该等于min(用户数, 库存)");
+        assertEquals(success.get(), orders, "订单没有在60秒内全部落库");
+        assertEquals(userIds.size(), userIds.stream().distinct().collect(Collectors.toList()).size(), "重复下单");
+        assertTrue(voucher.getStock() >= 0 && redisStock >= 0, "超卖");
+        assertEquals(stock, voucher.getStock() + orders, "数据库库存 + 订单数应该等于初始库存");
+        assertEquals(voucher.getStock().intValue(), redisStock, "Redis库存和数据库库存不一致");
+    }
+
+    private Long createSeckillVoucher(int stock) throws IOException {
+        JSONObject voucher = JSONUtil.createObj()
+                .set("shopId", 1)
+                .set("title", "压测券")
+                .set("payValue", 100)
+                .set("actualValue", 1000)
+                .set("type", 1)
+                .set("stock", stock)
+                .set("beginTime", LocalDateTime.now().minusMinutes(1).toString())
+                .set("endTime", LocalDateTime.now().plusHours(1).toString());
+        JSONObject result = post("/voucher/seckill", null, voucher.toString());
+        return result.getLong("data");
+    }
+
+    private int countOrders(Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    private JSONObject post(String path, String token, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        if (token != null) {
+            connection.setRequestProperty("authorization", token);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        // 读完响应体，连接才能放回keep-alive缓存复用
+        try (InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] bytes = new byte[1024];
+            for (int n; in != null && (n = in.read(bytes)) > 0; ) {
+                buffer.write(bytes, 0, n);
+            }
+            if (connection.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " " + path);
+            }
+            return JSONUtil.parseObj(buffer.toString(StandardCharsets.UTF_8.name()));
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}